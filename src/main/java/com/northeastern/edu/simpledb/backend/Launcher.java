@@ -28,11 +28,14 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("mmap", false, "-mmap");
+        options.addOption("lockwait", true, "-lockwait 500");
         DefaultParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.hasOption("mmap"),
+                    parseLockWait(cmd.getOptionValue("lockwait")));
             return;
         }
         if(cmd.hasOption("create")) {
@@ -47,16 +50,20 @@ public class Launcher {
         DataManger dm = DataMangerHandler.create(path, DEFALUT_MEM, tm);
         VersionManager vm = new VersionManager(tm, dm);
         TableManager.create(path, vm, dm);
+        vm.close();
         tm.close();
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, boolean mapped, long lockWait) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManger dm = DataMangerHandler.open(path, mem, tm);
-        VersionManager vm = new VersionManager(tm, dm);
+        DataManger dm = DataMangerHandler.open(path, mem, tm, mapped);
+        VersionManager vm = new VersionManager(tm, dm, lockWait);
         TableManager tbm = TableManager.open(path, vm, dm);
         new Server(port, tbm).start();
+        vm.close();
+        tm.close();
+        dm.close();
     }
 
     private static long parseMem(String memStr) {
@@ -81,5 +88,22 @@ public class Launcher {
         return DEFALUT_MEM;
     }
 
+    // milliseconds to wait for a lock, 0 means detecting deadlocks on every wait
+    private static long parseLockWait(String lockWaitStr) {
+        if(lockWaitStr == null || "".equals(lockWaitStr)) {
+            return 0;
+        }
+        long lockWait = 0;
+        try {
+            lockWait = Long.parseLong(lockWaitStr);
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidLockWaitException);
+        }
+        if(lockWait < 0) {
+            Panic.panic(Error.InvalidLockWaitException);
+        }
+        return lockWait;
+    }
+
 
 }
@@ -1,149 +1,436 @@
 package com.northeastern.edu.simpledb.backend.common;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Condition;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongPredicate;
 
 import com.northeastern.edu.simpledb.common.Error;
 
 /**
  * AbstractCache is a reference counting strategy for caching
+ * keys are spread over independent segments, each segment has its
+ * own lock and its own in-flight loads, so threads working on
+ * different keys don't contend with each other. entries are loaded
+ * and written back without holding the lock of their segment
+ *
+ * by default an entry is written back and evicted as soon as its
+ * reference count drops to zero. a subclass returning true from
+ * retainOnRelease() keeps unpinned entries resident, and they are
+ * only evicted by a clock sweep when a new entry needs the room
  */
 public abstract class AbstractCache<T> {
 
-    // the actual cache for data
-    private Map<Long, T> cache;
+    // default number of segments, it will be rounded up to a power of two
+    public static final int DEFAULT_SHARD_COUNT = Runtime.getRuntime().availableProcessors() * 4;
 
-    // a counter for the reference
-    private Map<Long, Integer> references;
+    // a hit can push the usage of an entry up to this value, so a single scan can't flush hot entries
+    private static final int MAX_USAGE = 5;
 
-    // whether the resource is being obtained by other thread
-    private Map<Long, Boolean> getting;
+    private final Segment<T>[] segments;
 
-    // the maximum number of data in cache
-    private int maxResource;
+    private final int segmentMask;
 
-    // the number of elements in the cache
-    private int count = 0;
+    // the maximum number of data in cache
+    private final int maxResource;
 
-    private Lock lock;
+    // the number of elements in the cache, shared by all segments
+    private final AtomicInteger count;
 
-    private Condition condition;
+    // bumped whenever an entry gets unpinned or evicted, a failed sweep is retried if it moved meanwhile
+    private final LongAdder unpins;
 
     public AbstractCache(int maxResource) {
+        this(maxResource, DEFAULT_SHARD_COUNT);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public AbstractCache(int maxResource, int shardCount) {
+        if (shardCount <= 0) throw new IllegalArgumentException("shard count must be positive");
+        int size = 1;
+        while (size < shardCount) size <<= 1;
         this.maxResource = maxResource;
-        this.cache = new ConcurrentHashMap<>();
-        this.references = new ConcurrentHashMap<>();
-        this.getting = new ConcurrentHashMap<>();
-        this.lock = new ReentrantLock();
-        this.condition = lock.newCondition();
+        this.count = new AtomicInteger(0);
+        this.unpins = new LongAdder();
+        this.segments = new Segment[size];
+        this.segmentMask = size - 1;
+        for (int i = 0; i < size; i++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    /**
+     * a segment owns a disjoint part of the keys
+     * all the maps are guarded by the lock of the segment
+     */
+    private static final class Segment<T> {
+
+        // the actual cache for data
+        final Map<Long, T> cache = new HashMap<>();
+
+        // a counter for the reference
+        final Map<Long, Integer> references = new HashMap<>();
+
+        // the resource is being obtained or written back by other thread, waiters block on the future
+        final Map<Long, CompletableFuture<T>> getting = new HashMap<>();
+
+        // how often an entry was used since the clock hand passed it last time
+        final Map<Long, Integer> usages = new HashMap<>();
+
+        // the clock, the head of the queue is where the hand points to
+        final ArrayDeque<Long> clock = new ArrayDeque<>();
+
+        final Lock lock = new ReentrantLock();
+    }
+
+    // spread the bits of key, then pick a segment
+    private Segment<T> segmentFor(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
     }
 
     // obtain data based on key
     protected T get(long key) throws Exception {
+        Segment<T> segment = segmentFor(key);
 
-        lock.lock();
+        for (;;) {
+            CompletableFuture<T> loading;
+            boolean loader = false;
 
-        try {
-            // the thread starts waiting while the data the thread wants is being loaded into the cache
-            while (getting.containsKey(key)) {
-                try {
-                    condition.await();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+            segment.lock.lock();
+            try {
+                T obj = segment.cache.get(key);
+                if (obj != null) {
+                    segment.references.merge(key, 1, Integer::sum);
+                    segment.usages.computeIfPresent(key, (k, u) -> Math.min(u + 1, MAX_USAGE));
+                    return obj;
                 }
+
+                loading = segment.getting.get(key);
+                if (loading == null) {
+                    if (!acquireSlot()) {
+                        long unpinned = unpins.sum();
+                        // the clock sweep takes the segment locks by itself
+                        segment.lock.unlock();
+                        try {
+                            // the hand may have passed entries other threads unpinned or evicted meanwhile, then sweep again
+                            if (!evict() && count.get() >= maxResource && unpins.sum() == unpinned) throw Error.CacheFullException;
+                        } finally {
+                            segment.lock.lock();
+                        }
+                        continue;
+                    }
+                    loading = new CompletableFuture<>();
+                    segment.getting.put(key, loading);
+                    loader = true;
+                }
+            } finally {
+                segment.lock.unlock();
             }
 
-            if (cache.containsKey(key)) {
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                return obj;
+            if (!loader) {
+                // the data the thread wants is being loaded by other thread, wait for that key only
+                awaitLoading(loading);
+                continue;
             }
 
-            if(maxResource > 0 && count == maxResource) {
-                throw Error.CacheFullException;
+            T obj;
+            try {
+                obj = getForCache(key);
+            } catch (Exception e) {
+                segment.lock.lock();
+                try {
+                    count.decrementAndGet();
+                    segment.getting.remove(key);
+                } finally {
+                    segment.lock.unlock();
+                }
+                loading.completeExceptionally(e);
+                throw e;
             }
 
-            count++;
-            getting.put(key, true);
-        } catch (Exception e) {
-            throw e;
-        } finally {
-            lock.unlock();
+            segment.lock.lock();
+            try {
+                segment.getting.remove(key);
+                segment.cache.put(key, obj);
+                segment.references.put(key, 1);
+                if (retainOnRelease()) {
+                    segment.usages.put(key, 1);
+                    segment.clock.addLast(key);
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+            // after data is loaded into the cache, wake up the threads waiting for this key
+            loading.complete(obj);
+            return obj;
         }
+    }
 
+    /**
+     * load an entry without pinning it, e.g. for read-ahead. nothing
+     * happens if the entry is cached or being loaded already, or if
+     * no room can be made for it. it only makes sense when unpinned
+     * entries are retained, otherwise it returns false right away
+     * a preloaded entry starts with no usage, so the clock sweep
+     * evicts it first if nobody asks for it
+     */
+    protected boolean preload(long key) throws Exception {
+        if (!retainOnRelease()) return false;
+        if (!acquireSlot() && !(evict() && acquireSlot())) return false;
 
-        T obj = null;
+        Segment<T> segment = segmentFor(key);
+        CompletableFuture<T> loading;
+        segment.lock.lock();
+        try {
+            if (segment.cache.containsKey(key) || segment.getting.containsKey(key)) {
+                count.decrementAndGet();
+                return false;
+            }
+            loading = new CompletableFuture<>();
+            segment.getting.put(key, loading);
+        } finally {
+            segment.lock.unlock();
+        }
+
+        T obj;
         try {
             obj = getForCache(key);
-        } catch(Exception e) {
-            lock.lock();
+        } catch (Exception e) {
+            segment.lock.lock();
             try {
-                count--;
-                getting.remove(key);
+                count.decrementAndGet();
+                segment.getting.remove(key);
             } finally {
-                lock.unlock();
+                segment.lock.unlock();
             }
+            loading.completeExceptionally(e);
             throw e;
         }
 
-        lock.lock();
+        segment.lock.lock();
         try {
-            getting.remove(key);
-            cache.put(key, obj);
-            references.put(key, 1);
-            // after data is loaded into the cache, notify all threads is sleeping before
-            condition.signalAll();
+            segment.getting.remove(key);
+            segment.cache.put(key, obj);
+            segment.references.put(key, 0);
+            segment.usages.put(key, 0);
+            segment.clock.addLast(key);
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
         }
+        unpins.increment();
+        loading.complete(obj);
+        return true;
+    }
 
-        return obj;
+    // wait for the loader, if it failed the waiter will retry by itself
+    private void awaitLoading(CompletableFuture<T> loading) {
+        try {
+            loading.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException ignored) {
+        }
+    }
+
+    // take a place in the cache, false if the cache is full
+    private boolean acquireSlot() {
+        if (maxResource <= 0) {
+            count.incrementAndGet();
+            return true;
+        }
+        for (;;) {
+            int c = count.get();
+            if (c >= maxResource) return false;
+            if (count.compareAndSet(c, c + 1)) return true;
+        }
     }
 
     // forcefully release a cache based on key
     protected void release(long key) {
-        lock.lock();
+        Segment<T> segment = segmentFor(key);
+        T obj;
+        CompletableFuture<T> writing;
+        segment.lock.lock();
         try {
-            int ref = references.get(key) - 1;
+            Integer references = segment.references.get(key);
+            if (references == null) return ;
+            int ref = references - 1;
             if (ref < 0) return ;
-            if(ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count--;
+            if (ref == 0 && retainOnRelease()) {
+                // keep it resident, the clock sweep decides when it leaves
+                segment.references.put(key, 0);
+                unpins.increment();
+                return ;
+            } else if(ref == 0) {
+                segment.references.remove(key);
+                obj = segment.cache.remove(key);
+                writing = new CompletableFuture<>();
+                segment.getting.put(key, writing);
             } else {
-                references.put(key, ref);
+                segment.references.put(key, ref);
+                return ;
             }
         } finally {
-            lock.unlock();
+            segment.lock.unlock();
+        }
+        writeBack(segment, key, obj, writing);
+    }
+
+    /**
+     * write back an entry taken out of its segment, the segment lock
+     * isn't held, a thread asking for the key meanwhile waits on the
+     * future in `getting` and loads the key again once it is written
+     */
+    private void writeBack(Segment<T> segment, long key, T obj, CompletableFuture<T> writing) {
+        try {
+            releaseForCache(obj);
+        } finally {
+            segment.lock.lock();
+            try {
+                segment.getting.remove(key);
+            } finally {
+                segment.lock.unlock();
+            }
+            count.decrementAndGet();
+            writing.complete(null);
+        }
+    }
+
+    /**
+     * make room for one entry when the cache is full, every segment
+     * is swept starting from one picked by the thread id, so that the
+     * sweeps of concurrent threads don't pile up on the same segment
+     * return false if every entry is pinned
+     */
+    private boolean evict() {
+        if (!retainOnRelease()) return false;
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < segments.length; i++) {
+            Segment<T> segment = segments[(start + i) & segmentMask];
+            Long key;
+            T obj;
+            CompletableFuture<T> writing;
+            segment.lock.lock();
+            try {
+                key = sweep(segment);
+                if (key == null) continue;
+                obj = segment.cache.remove(key);
+                writing = new CompletableFuture<>();
+                segment.getting.put(key, writing);
+            } finally {
+                segment.lock.unlock();
+            }
+            writeBack(segment, key, obj, writing);
+            unpins.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * move the clock hand over the segment, an unpinned entry
+     * whose usage is zero is the victim, otherwise its usage is
+     * decreased and the hand moves on
+     * return the key of the victim, it is left in the cache map
+     * only, or null if every entry is pinned
+     */
+    private Long sweep(Segment<T> segment) {
+        int steps = segment.clock.size() * (MAX_USAGE + 1);
+        for (int i = 0; i < steps; i++) {
+            Long key = segment.clock.pollFirst();
+            if (key == null) return null;
+            int ref = segment.references.getOrDefault(key, 0);
+            int usage = segment.usages.getOrDefault(key, 0);
+            if (ref == 0 && usage == 0) {
+                segment.references.remove(key);
+                segment.usages.remove(key);
+                return key;
+            }
+            if (ref == 0) segment.usages.put(key, usage - 1);
+            segment.clock.addLast(key);
+        }
+        return null;
+    }
+
+    /**
+     * drop the unpinned entries whose key matches the filter without
+     * writing them back, it is used when the backing data was removed
+     * the matching entries being loaded or written back are waited for
+     * first, so none of them is written after it returns
+     */
+    protected void invalidate(LongPredicate filter) {
+        for (Segment<T> segment : segments) {
+            List<CompletableFuture<T>> pending = new ArrayList<>();
+            segment.lock.lock();
+            try {
+                segment.getting.forEach((key, future) -> {
+                    if (filter.test(key)) pending.add(future);
+                });
+            } finally {
+                segment.lock.unlock();
+            }
+            pending.forEach(this::awaitLoading);
+
+            segment.lock.lock();
+            try {
+                Iterator<Long> iterator = segment.clock.iterator();
+                while (iterator.hasNext()) {
+                    long key = iterator.next();
+                    if (!filter.test(key) || segment.references.getOrDefault(key, 0) > 0) continue;
+                    iterator.remove();
+                    discardForCache(segment.cache.remove(key));
+                    segment.references.remove(key);
+                    segment.usages.remove(key);
+                    count.decrementAndGet();
+                }
+            } finally {
+                segment.lock.unlock();
+            }
         }
     }
 
     // turn off caching and write back all resources
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+        for (Segment<T> segment : segments) {
+            segment.lock.lock();
+            try {
+                for (T obj : segment.cache.values()) {
+                    releaseForCache(obj);
+                }
+                count.addAndGet(-segment.cache.size());
+                segment.references.clear();
+                segment.usages.clear();
+                segment.clock.clear();
+                segment.cache.clear();
+            } finally {
+                segment.lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
+    // whether an entry stays in the cache after its reference count drops to zero
+    protected boolean retainOnRelease() {
+        return false;
+    }
+
     // default behavior to perform if cache misses
     protected abstract T getForCache(long key) throws Exception;
 
     // default write back behavior when cache eviction
     protected abstract void releaseForCache(T obj);
+
+    // an entry dropped by invalidate(), nothing is written back
+    protected void discardForCache(T obj) {
+    }
 }
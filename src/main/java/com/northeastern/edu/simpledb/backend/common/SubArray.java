@@ -1,13 +1,24 @@
 package com.northeastern.edu.simpledb.backend.common;
 
+import java.nio.ByteBuffer;
+
+/**
+ * SubArray
+ * [start, end) of a buffer, the buffer may be a page frame shared by
+ * many threads, so it is only accessed with absolute positions
+ */
 public class SubArray {
-    public byte[] raw;
+    public ByteBuffer raw;
     public int start;
     public int end;
 
-    public SubArray(byte[] raw, int start, int end) {
+    public SubArray(ByteBuffer raw, int start, int end) {
         this.raw = raw;
         this.start = start;
         this.end = end;
     }
+
+    public SubArray(byte[] raw, int start, int end) {
+        this(ByteBuffer.wrap(raw), start, end);
+    }
 }
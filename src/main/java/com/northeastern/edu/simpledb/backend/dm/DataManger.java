@@ -7,6 +7,7 @@ import com.northeastern.edu.simpledb.backend.dm.logger.Logger;
 import com.northeastern.edu.simpledb.backend.dm.page.L1Page;
 import com.northeastern.edu.simpledb.backend.dm.page.Page;
 import com.northeastern.edu.simpledb.backend.dm.page.SecondaryPage;
+import com.northeastern.edu.simpledb.backend.dm.pageIndex.FreeSpaceMap;
 import com.northeastern.edu.simpledb.backend.dm.pageIndex.PageIndex;
 import com.northeastern.edu.simpledb.backend.dm.pageIndex.PageInfo;
 import com.northeastern.edu.simpledb.backend.tm.TransactionManager;
@@ -14,21 +15,120 @@ import com.northeastern.edu.simpledb.backend.utils.Panic;
 import com.northeastern.edu.simpledb.backend.utils.Types;
 import com.northeastern.edu.simpledb.common.Error;
 
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static com.northeastern.edu.simpledb.backend.tm.TransactionManager.SUPER_XID;
+
 public class DataManger extends AbstractCache<DataItem> implements DataMangerHandler {
 
+    // how often a fuzzy checkpoint is taken, unit is second
+    static final long CHECKPOINT_INTERVAL = 30;
+
     TransactionManager tm;
     PageCache pageCache;
     Logger logger;
     PageIndex pageIndex;
 
+    // saved on close and loaded on open, null if the page index is always built from pages
+    FreeSpaceMap freeSpaceMap;
+
     Page firstPage;
 
+    /**
+     * position of the first log of every transaction which wrote
+     * something, the recovery has to undo from the smallest one
+     * format: {xid: position}
+     */
+    private final Map<Long, Long> firstLogPositions;
+
+    /**
+     * position of the last log of every transaction which wrote
+     * something, the commit waits until it is durable
+     * format: {xid: position}
+     */
+    private final Map<Long, Long> lastLogPositions;
+
+    private ScheduledExecutorService checkpointer;
+
     public DataManger(PageCache pageCache, Logger logger, TransactionManager tm) {
         super(0);
         this.pageCache = pageCache;
         this.logger = logger;
         this.tm = tm;
         this.pageIndex = new PageIndex();
+        this.firstLogPositions = new ConcurrentHashMap<>();
+        this.lastLogPositions = new ConcurrentHashMap<>();
+        // a page can't reach disk before the logs describing it
+        pageCache.setWriteAheadBarrier(logger::flush);
+    }
+
+    // take a checkpoint every CHECKPOINT_INTERVAL seconds in background
+    void startCheckpointer() {
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * take a fuzzy checkpoint, transactions keep running meanwhile
+     * step1 remember where the log ends, every log before it describes a page dirtied in the current epoch or earlier
+     * step2 write back the pages dirtied up to the current epoch
+     * step3 append the checkpoint log and point the L1 page to it
+     * step4 remove the log segments recovery doesn't need any more
+     */
+    public void checkpoint() {
+        long redoStart = logger.size();
+        long checkpointEpoch = pageCache.beginCheckpoint();
+        pageCache.flushCheckpoint(checkpointEpoch);
+
+        long undoStart = redoStart;
+        Iterator<Map.Entry<Long, Long>> iterator = firstLogPositions.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Long> entry = iterator.next();
+            if (!tm.isActive(entry.getKey())) {
+                iterator.remove();
+                continue;
+            }
+            undoStart = Math.min(undoStart, entry.getValue());
+        }
+        lastLogPositions.keySet().removeIf(xid -> !tm.isActive(xid));
+
+        byte[] log = Recover.checkpointLog(redoStart, undoStart, pageCache.getPageNumber());
+        long position = logger.log(log);
+
+        L1Page.setCheckpoint(firstPage, position);
+        firstPage.setLsn(position);
+        pageCache.flushPage(firstPage);
+        pageCache.force();
+
+        // recovery never reads the logs before both starts again
+        logger.removeSegmentsBefore(Math.min(redoStart, undoStart));
+    }
+
+    // remember the first log of the transaction, it must be called before the log is written
+    private void registerLog(long xid) {
+        if (xid == SUPER_XID) return;
+        firstLogPositions.putIfAbsent(xid, logger.size());
+    }
+
+    private void logged(long xid, long position) {
+        if (xid == SUPER_XID) return;
+        lastLogPositions.put(xid, position);
+    }
+
+    // wait until every log of the transaction is durable, invoked when it commits
+    public void flushLog(long xid) {
+        Long position = lastLogPositions.remove(xid);
+        if (position != null) logger.flush(position);
     }
 
     void initL1Page() {
@@ -51,26 +151,46 @@ public class DataManger extends AbstractCache<DataItem> implements DataMangerHan
         return L1Page.checkVc(firstPage);
     }
 
-    // initialize page index after DataManger#open
-    void fillPageIndex() {
+    /**
+     * initialize page index after DataManger#open, the free space map is
+     * used after a normal shutdown, otherwise every page is read in parallel
+     */
+    void fillPageIndex(boolean closedNormally) {
         int pageNumber = pageCache.getPageNumber();
-        // iterate over all page number, then build page index
+        short[] freeSpaces = null;
+        if (closedNormally && freeSpaceMap != null) {
+            freeSpaces = freeSpaceMap.load(L1Page.getVc(firstPage), pageNumber);
+        }
+        if (freeSpaces == null) freeSpaces = readFreeSpaces(pageNumber);
         for (int i = 2; i <= pageNumber; i++) {
+            pageIndex.add(i, freeSpaces[i]);
+        }
+    }
+
+    // read the free space of every secondary page, indexed by page number
+    private short[] readFreeSpaces(int pageNumber) {
+        short[] freeSpaces = new short[pageNumber + 1];
+        IntStream.rangeClosed(2, pageNumber).parallel().forEach(i -> {
             Page page = null;
             try {
                 page = pageCache.getPage(i);
             } catch (Exception e) {
                 Panic.panic(e);
             }
-            pageIndex.add(pageNumber, SecondaryPage.getFreeSpace(page));
+            freeSpaces[i] = (short) SecondaryPage.getFreeSpace(page);
             page.release();
-        }
+        });
+        return freeSpaces;
     }
 
     // generate log for every transaction referring to `xid`
     public void logDataItem(long xid, DataItem dataItem) {
         byte[] log = Recover.updateLog(xid, dataItem);
-        logger.log(log);
+        if (log == null) return;
+        registerLog(xid);
+        long position = logger.log(log);
+        dataItem.page().setLsn(position);
+        logged(xid, position);
     }
 
     // build key from uid, then get data item by key
@@ -99,6 +219,11 @@ public class DataManger extends AbstractCache<DataItem> implements DataMangerHan
         return dataItem;
     }
 
+    // a hint that the data item will be read soon, its page is loaded in background
+    public void prefetch(long uid) {
+        pageCache.prefetch((int) (uid >>> 32));
+    }
+
     // insert a data through DataManger
     @Override
     public long insert(long xid, byte[] data) throws Exception {
@@ -127,17 +252,27 @@ public class DataManger extends AbstractCache<DataItem> implements DataMangerHan
 
         try {
             page = pageCache.getPage(pageInfo.pageNumber);
-            byte[] log = Recover.insertLog(xid, page, raw);
-            logger.log(log);
+            // the page joins the dirty page table before its log is written, so a checkpoint can't miss it,
+            // and it isn't written back between the log and the insertion
+            page.startModify();
+            try {
+                byte[] log = Recover.insertLog(xid, page, raw);
+                registerLog(xid);
+                long position = logger.log(log);
+                page.setLsn(position);
+                logged(xid, position);
 
-            // step3 write to page, return offset can be used as uid for cache of data item
-            short offset = SecondaryPage.insert(page, raw);
-            page.release();
-            return Types.addressToUid(pageInfo.pageNumber, offset);
+                // step3 write to page, return offset can be used as uid for cache of data item
+                short offset = SecondaryPage.insert(page, raw);
+                return Types.addressToUid(pageInfo.pageNumber, offset);
+            } finally {
+                page.endModify();
+            }
         } finally {
-            // step4 put back page index
+            // step4 put back page index, the page is read before it is released since its frame may be recycled
             if (page != null) {
                 pageIndex.add(pageInfo.pageNumber, SecondaryPage.getFreeSpace(page));
+                page.release();
             } else {
                 pageIndex.add(pageInfo.pageNumber, freeSpace);
             }
@@ -148,9 +283,21 @@ public class DataManger extends AbstractCache<DataItem> implements DataMangerHan
     // close cache and logger
     @Override
     public void close() {
+        if (checkpointer != null) {
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(CHECKPOINT_INTERVAL, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         super.close();
         logger.close();
 
+        // the map is saved before the L1 page is marked closed, a crash in between makes the next open rebuild it
+        if (freeSpaceMap != null) {
+            freeSpaceMap.save(L1Page.getVc(firstPage), pageIndex.snapshot(pageCache.getPageNumber()));
+        }
         L1Page.setVcClose(firstPage);
         firstPage.release();
         pageCache.close();
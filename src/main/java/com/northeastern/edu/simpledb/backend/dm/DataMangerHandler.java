@@ -5,6 +5,7 @@ import com.northeastern.edu.simpledb.backend.dm.cache.PageCacheHandler;
 import com.northeastern.edu.simpledb.backend.dm.dataItem.DataItem;
 import com.northeastern.edu.simpledb.backend.dm.logger.Logger;
 import com.northeastern.edu.simpledb.backend.dm.page.L1Page;
+import com.northeastern.edu.simpledb.backend.dm.pageIndex.FreeSpaceMap;
 import com.northeastern.edu.simpledb.backend.tm.TransactionManager;
 
 public interface DataMangerHandler {
@@ -18,25 +19,39 @@ public interface DataMangerHandler {
      * initialize the L1 page
      */
     static DataManger create(String path, long memory, TransactionManager tm) {
-        PageCache pageCache = PageCacheHandler.create(path, memory);
+        return create(path, memory, tm, false);
+    }
+
+    // `mapped` chooses the memory mapped page cache
+    static DataManger create(String path, long memory, TransactionManager tm, boolean mapped) {
+        PageCache pageCache = PageCacheHandler.create(path, memory, mapped);
         Logger logger = Logger.create(path);
 
         DataManger dataManger = new DataManger(pageCache, logger, tm);
+        dataManger.freeSpaceMap = new FreeSpaceMap(path);
         dataManger.initL1Page();
+        dataManger.startCheckpointer();
         return dataManger;
     }
 
     static DataManger open(String path, long memory, TransactionManager tm) {
-        PageCache pageCache = PageCacheHandler.open(path, memory);
+        return open(path, memory, tm, false);
+    }
+
+    static DataManger open(String path, long memory, TransactionManager tm, boolean mapped) {
+        PageCache pageCache = PageCacheHandler.open(path, memory, mapped);
         Logger logger = Logger.open(path);
 
         DataManger dataManger = new DataManger(pageCache, logger, tm);
-        if (!dataManger.loadCheckFirstPage()) {   // check failed
+        dataManger.freeSpaceMap = new FreeSpaceMap(path);
+        boolean closedNormally = dataManger.loadCheckFirstPage();
+        if (!closedNormally) {   // check failed
             Recover.recover(tm, logger, pageCache); // recover based on log file
         }
-        dataManger.fillPageIndex(); // initialize page index
+        dataManger.fillPageIndex(closedNormally); // initialize page index
         L1Page.setVcOpen(dataManger.firstPage); // set flag for valid check
         dataManger.pageCache.flushPage(dataManger.firstPage); // flush to disk immediately
+        dataManger.startCheckpointer();
         return dataManger;
     }
 }
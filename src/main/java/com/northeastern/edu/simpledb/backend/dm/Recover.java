@@ -5,12 +5,14 @@ import com.northeastern.edu.simpledb.backend.common.SubArray;
 import com.northeastern.edu.simpledb.backend.dm.cache.PageCache;
 import com.northeastern.edu.simpledb.backend.dm.dataItem.DataItem;
 import com.northeastern.edu.simpledb.backend.dm.logger.Logger;
+import com.northeastern.edu.simpledb.backend.dm.page.L1Page;
 import com.northeastern.edu.simpledb.backend.dm.page.Page;
 import com.northeastern.edu.simpledb.backend.dm.page.SecondaryPage;
 import com.northeastern.edu.simpledb.backend.tm.TransactionManager;
 import com.northeastern.edu.simpledb.backend.utils.Panic;
 import com.northeastern.edu.simpledb.backend.utils.Parser;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class Recover {
@@ -18,10 +20,14 @@ public class Recover {
     /**
      * insert log: [size][checksum][log type][xid][page number][offset][raw]
      * update log: [size][checksum][log type][xid][uid][old data][latest data]
+     * delta log: [size][checksum][log type][xid][uid][range count][offset1][length1][old data1][latest data1]...
+     * checkpoint log: [size][checksum][log type][redo start][undo start][max page number]
      */
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE =  1;
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    private static final byte LOG_TYPE_DELTA = 3;
 
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE + 1;
@@ -29,10 +35,23 @@ public class Recover {
     private static final int OF_UPDATE_UID = OF_XID + 8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID + 8;
 
+    private static final int OF_DELTA_COUNT = OF_UPDATE_RAW;
+    private static final int OF_DELTA_RANGES = OF_DELTA_COUNT + 2;
+    // [offset][length] of a range
+    private static final int DELTA_RANGE_HEADER_SIZE = 4;
+
+    // unchanged bytes between two changed ranges are logged with them if there are fewer than this
+    private static final int DELTA_GAP = DELTA_RANGE_HEADER_SIZE / 2 + 1;
+
     private static final int OF_INSERT_PAGE_NUMBER = OF_XID + 8;
     private static final int OF_INSERT_OFFSET = OF_INSERT_PAGE_NUMBER + 4;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
 
+    private static final int OF_CHECKPOINT_REDO = OF_TYPE + 1;
+    private static final int OF_CHECKPOINT_UNDO = OF_CHECKPOINT_REDO + 8;
+    private static final int OF_CHECKPOINT_MAX_PAGE = OF_CHECKPOINT_UNDO + 8;
+    private static final int CHECKPOINT_LOG_SIZE = OF_CHECKPOINT_MAX_PAGE + 4;
+
     public static byte[] insertLog(long xid, Page page, byte[] raw) {
         // [DataType: 1byte][Xid: 8bytes][PageNumber: 4bytes][Offset: 2bytes][Raw]
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
@@ -49,88 +68,215 @@ public class Recover {
         byte[] raw;
     }
 
+    // an update log changes one or more ranges of a page
     static class UpdateLogInfo {
         long xid;
         int pageNumber;
-        short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+        short[] offsets;
+        byte[][] oldRaws;
+        byte[][] newRaws;
+    }
+
+    static class CheckpointLogInfo {
+        // every page modified by a log before it had been written back when the checkpoint was taken
+        long redoStart;
+        // no log before it belongs to a transaction that was active when the checkpoint was taken
+        long undoStart;
+        int maxPageNumber;
+    }
+
+    // [log type][redo start][undo start][max page number]
+    public static byte[] checkpointLog(long redoStart, long undoStart, int maxPageNumber) {
+        byte[] logTypeRaw = {LOG_TYPE_CHECKPOINT};
+        return Bytes.concat(logTypeRaw, Parser.long2Byte(redoStart), Parser.long2Byte(undoStart), Parser.int2Byte(maxPageNumber));
+    }
+
+    private static CheckpointLogInfo parseCheckpointLog(byte[] log) {
+        CheckpointLogInfo checkpointLogInfo = new CheckpointLogInfo();
+        checkpointLogInfo.redoStart = Parser.parseLong(Arrays.copyOfRange(log, OF_CHECKPOINT_REDO, OF_CHECKPOINT_UNDO));
+        checkpointLogInfo.undoStart = Parser.parseLong(Arrays.copyOfRange(log, OF_CHECKPOINT_UNDO, OF_CHECKPOINT_MAX_PAGE));
+        checkpointLogInfo.maxPageNumber = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKPOINT_MAX_PAGE, CHECKPOINT_LOG_SIZE));
+        return checkpointLogInfo;
     }
 
+    // find the last checkpoint through the L1 page, null if there is none
+    private static CheckpointLogInfo loadCheckpoint(Logger logger, PageCache pageCache) {
+        long position;
+        Page page = null;
+        try {
+            page = pageCache.getPage(1);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            position = L1Page.getCheckpoint(page);
+        } finally {
+            page.release();
+        }
+        if (position == 0) return null;
+
+        logger.seek(position);
+        byte[] log = logger.next();
+        if (log == null || !isCheckpointLog(log)) return null;
+        return parseCheckpointLog(log);
+    }
+
+    // a log read by the analysis pass, it is parsed only once
+    static class LogInfo {
+        long position;
+        long xid;
+        int pageNumber;
+        InsertLogInfo insert;
+        UpdateLogInfo update;
+    }
+
+    /**
+     * replay the log starting from the last checkpoint if there is
+     * one, otherwise from the beginning of the log file
+     * step1 analysis: read the log once, parse every log and find the state of every transaction
+     * step2 redo: the logs of different pages are redone in parallel, the logs of a page in order
+     * step3 undo: every active transaction is undone in parallel, its logs in reverse order
+     * step4 abort the active transactions found by the analysis and the rest of the last xid batch
+     */
     public static void recover(TransactionManager tm, Logger logger, PageCache pageCache) {
         System.out.println("Recovering");
+        long begin = System.nanoTime();
 
-        logger.rewind();
+        CheckpointLogInfo checkpoint = loadCheckpoint(logger, pageCache);
+        long redoStart = 0, undoStart = 0;
         int maxPage = 0;
+        if (checkpoint != null) {
+            redoStart = checkpoint.redoStart;
+            undoStart = checkpoint.undoStart;
+            maxPage = checkpoint.maxPageNumber;
+            System.out.println("Start from checkpoint, redo from " + redoStart + ", undo from " + undoStart);
+        }
+
+        // transaction table, the state of every transaction is read from the xid file once
+        Map<Long, Boolean> activeTransactions = new HashMap<>();
+        // logs to redo grouped by page, in log order
+        Map<Integer, List<LogInfo>> redoLogs = new HashMap<>();
+        // logs to undo grouped by transaction, in log order
+        Map<Long, List<LogInfo>> undoLogs = new HashMap<>();
+
+        int logs = 0;
+        logger.seek(Math.min(redoStart, undoStart));
         byte[] log;
         while ((log = logger.next()) != null) {
-            int pageNumber;
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pageNumber = li.pageNumber;
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                pageNumber = xi.pageNumber;
+            if (isCheckpointLog(log)) continue;
+            LogInfo logInfo = parseLog(log);
+            logInfo.position = logger.getLastPosition();
+            logs++;
+            if (logInfo.pageNumber > maxPage) {
+                maxPage = logInfo.pageNumber;
             }
-            if (pageNumber > maxPage) {
-                maxPage = pageNumber;
+
+            boolean active = activeTransactions.computeIfAbsent(logInfo.xid, tm::isActive);
+            if (active) {
+                if (logInfo.position >= undoStart) undoLogs.computeIfAbsent(logInfo.xid, k -> new ArrayList<>()).add(logInfo);
+            } else {
+                if (logInfo.position >= redoStart) redoLogs.computeIfAbsent(logInfo.pageNumber, k -> new ArrayList<>()).add(logInfo);
             }
         }
+        long analyzed = System.nanoTime();
+        System.out.println("Analysis Over, " + logs + " logs, " + undoLogs.size() + " active transactions, " + elapsed(begin, analyzed));
 
         if (maxPage == 0) maxPage = 1;
         pageCache.truncateByPageNumber(maxPage);
         System.out.println("Truncate to " + maxPage + " pages.");
 
-        redoTransactions(tm, logger, pageCache);
-        System.out.println("Redo Transactions Over.");
+        redoTransactions(pageCache, redoLogs);
+        long redone = System.nanoTime();
+        System.out.println("Redo Transactions Over, " + redoLogs.size() + " pages, " + elapsed(analyzed, redone));
+
+        undoTransactions(tm, pageCache, undoLogs);
+        long undone = System.nanoTime();
+        System.out.println("Undo Transactions Over, " + elapsed(redone, undone));
 
-        undoTransactions(tm, logger, pageCache);
-        System.out.println("Undo Transactions Over.");
+        List<Long> activeXids = new ArrayList<>();
+        for (Map.Entry<Long, Boolean> entry : activeTransactions.entrySet()) {
+            if (entry.getValue()) activeXids.add(entry.getKey());
+        }
+        tm.abortActive(activeXids);
 
-        System.out.println("Recovery Over.");
+        System.out.println("Recovery Over, " + elapsed(begin, undone));
 
     }
 
-    // redo transactions based on log file
-    private static void redoTransactions(TransactionManager tm, Logger logger, PageCache pageCache) {
-        logger.rewind();
-        byte[] log;
-        while ((log = logger.next()) != null) {
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                if (!tm.isActive(li.xid)) {
-                    doInsertLog(pageCache, log, REDO);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                if (!tm.isActive(xi.xid)) {
-                    doUpdateLog(pageCache, log, REDO);
-                }
+    private static String elapsed(long from, long to) {
+        return (to - from) / 1_000_000 + "ms";
+    }
+
+    // redo the logs of committed and aborted transactions, every page is redone by one thread
+    private static void redoTransactions(PageCache pageCache, Map<Integer, List<LogInfo>> redoLogs) {
+        redoLogs.values().parallelStream().forEach(logs -> {
+            for (LogInfo logInfo : logs) {
+                if (logInfo.insert != null) doInsertLog(pageCache, logInfo.insert, REDO);
+                else doUpdateLog(pageCache, logInfo.update, REDO);
             }
+        });
+    }
+
+    private static LogInfo parseLog(byte[] log) {
+        LogInfo logInfo = new LogInfo();
+        if (isInsertLog(log)) {
+            logInfo.insert = parseInsertLog(log);
+            logInfo.xid = logInfo.insert.xid;
+            logInfo.pageNumber = logInfo.insert.pageNumber;
+        } else {
+            logInfo.update = parseUpdateLog(log);
+            logInfo.xid = logInfo.update.xid;
+            logInfo.pageNumber = logInfo.update.pageNumber;
         }
+        return logInfo;
     }
 
-    // [log type][xid][uid][old data][latest data]
+    /**
+     * update log: [log type][xid][uid][old data][latest data]
+     * delta log: [log type][xid][uid][range count][offset][length][old data][latest data]...
+     * the offset of a range is relative to the data item
+     */
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
         UpdateLogInfo updateLogInfo = new UpdateLogInfo();
-        updateLogInfo.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        updateLogInfo.xid = buf.getLong(OF_XID);
         // update id: [page number][offset]
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        updateLogInfo.offset = (short) (uid & ((1L << 16) - 1));
-        uid >>>= 16;
+        long uid = buf.getLong(OF_UPDATE_UID);
+        short offset = (short) (uid & ((1L << 16) - 1));
+        uid >>>= 32;
         updateLogInfo.pageNumber = (int) (uid & (1L << 32) - 1);
-        int length = (log.length - OF_INSERT_RAW) / 2;
-        updateLogInfo.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length);
-        updateLogInfo.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + 2 * length);
+
+        if (log[OF_TYPE] == LOG_TYPE_UPDATE) {
+            int length = (log.length - OF_UPDATE_RAW) / 2;
+            updateLogInfo.offsets = new short[]{offset};
+            updateLogInfo.oldRaws = new byte[][]{Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length)};
+            updateLogInfo.newRaws = new byte[][]{Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + 2 * length)};
+            return updateLogInfo;
+        }
+
+        int count = buf.getShort(OF_DELTA_COUNT);
+        updateLogInfo.offsets = new short[count];
+        updateLogInfo.oldRaws = new byte[count][];
+        updateLogInfo.newRaws = new byte[count][];
+        int position = OF_DELTA_RANGES;
+        for (int i = 0; i < count; i++) {
+            int length = buf.getShort(position + 2);
+            updateLogInfo.offsets[i] = (short) (offset + buf.getShort(position));
+            position += DELTA_RANGE_HEADER_SIZE;
+            updateLogInfo.oldRaws[i] = Arrays.copyOfRange(log, position, position + length);
+            updateLogInfo.newRaws[i] = Arrays.copyOfRange(log, position + length, position + 2 * length);
+            position += 2 * length;
+        }
         return updateLogInfo;
     }
 
     // [log type][xid][page number][offset][raw]
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo insertLogInfo = new InsertLogInfo();
-        insertLogInfo.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PAGE_NUMBER));
-        insertLogInfo.pageNumber = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PAGE_NUMBER, OF_INSERT_OFFSET));
-        insertLogInfo.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        insertLogInfo.xid = buf.getLong(OF_XID);
+        insertLogInfo.pageNumber = buf.getInt(OF_INSERT_PAGE_NUMBER);
+        insertLogInfo.offset = buf.getShort(OF_INSERT_OFFSET);
         insertLogInfo.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return insertLogInfo;
     }
@@ -140,55 +286,39 @@ public class Recover {
         return log[0] == LOG_TYPE_INSERT;
     }
 
-    // update transactions based on log file
-    private static void undoTransactions(TransactionManager tm, Logger logger, PageCache pageCache) {
-        HashMap<Long, List<byte[]>> logCache = new HashMap();
-        logger.rewind();
-        byte[] log;
-        while ((log = logger.next()) != null) {
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                if (tm.isActive(li.xid)) {
-                    if (!logCache.containsKey(li.xid)) logCache.put(li.xid, new ArrayList<>());
-                    logCache.get(li.xid).add(log);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                if (tm.isActive(xi.xid)) {
-                    if (!logCache.containsKey(xi.xid)) logCache.put(xi.xid, new ArrayList<>());
-                    logCache.get(xi.xid).add(log);
-                }
-            }
-        }
+    private static boolean isCheckpointLog(byte[] log) {
+        return log[0] == LOG_TYPE_CHECKPOINT;
+    }
 
-        // processing undo logs which state is active reversely
-        for (Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
+    /**
+     * undo the logs of active transactions, every transaction is undone
+     * by one thread in reverse order, then it is aborted
+     */
+    private static void undoTransactions(TransactionManager tm, PageCache pageCache, Map<Long, List<LogInfo>> undoLogs) {
+        undoLogs.entrySet().parallelStream().forEach(entry -> {
+            List<LogInfo> logs = entry.getValue();
             for (int i = logs.size() - 1; i >= 0; i--) {
-                byte[] tmp = logs.get(i);
-                if (isInsertLog(tmp)) doInsertLog(pageCache, tmp, UNDO);
-                else doUpdateLog(pageCache, tmp, UNDO);
+                LogInfo logInfo = logs.get(i);
+                if (logInfo.insert != null) doInsertLog(pageCache, logInfo.insert, UNDO);
+                else doUpdateLog(pageCache, logInfo.update, UNDO);
             }
-            tm.abort(entry.getKey());
+        });
+        for (long xid : undoLogs.keySet()) {
+            tm.abort(xid);
         }
     }
 
 
     private final static int REDO = 0;
-    private final static int UNDO = 0;
+    private final static int UNDO = 1;
 
-    private static void doUpdateLog(PageCache pageCache, byte[] log, int flag) {
+    private static void doUpdateLog(PageCache pageCache, UpdateLogInfo updateLogInfo, int flag) {
         // step1 determine action based on flag
-        int pageNumber;
-        short offset;
-        byte[] raw;
+        int pageNumber = updateLogInfo.pageNumber;
+        byte[][] raws;
 
-        UpdateLogInfo updateLogInfo = parseUpdateLog(log);
-        pageNumber = updateLogInfo.pageNumber;
-        offset = updateLogInfo.offset;
-
-        if (flag == REDO) raw = updateLogInfo.newRaw; // redo update
-        else raw = updateLogInfo.oldRaw; // undo update
+        if (flag == REDO) raws = updateLogInfo.newRaws; // redo update
+        else raws = updateLogInfo.oldRaws; // undo update
 
         // step2 get page by page number
         Page page = null;
@@ -198,22 +328,25 @@ public class Recover {
             Panic.panic(e);
         }
 
-        // step3 update page with the help of `recoverUpdate()` from secondary page
+        // step3 update page with the help of `recoverUpdate()` from secondary page, transactions are undone in parallel
         assert page != null;
+        page.lock();
         try {
-            SecondaryPage.recoverUpdate(page, raw, offset);
+            for (int i = 0; i < raws.length; i++) {
+                SecondaryPage.recoverUpdate(page, raws[i], updateLogInfo.offsets[i]);
+            }
         } finally {
+            page.unlock();
             page.release();
         }
     }
 
-    private static void doInsertLog(PageCache pageCache, byte[] log, int flag) {
-        // step1 parsing insert log
-        InsertLogInfo insertLogInfo = parseInsertLog(log);
+    private static void doInsertLog(PageCache pageCache, InsertLogInfo insertLogInfo, int flag) {
+        // step1 the page of the insert log
         int pageNumber = insertLogInfo.pageNumber;
 
-        // step2 determine action based on flag
-        if (flag == REDO) DataItem.setDataItemRawInvalid(insertLogInfo.raw);
+        // step2 determine action based on flag, undoing an insertion invalidates the data item
+        if (flag == UNDO) DataItem.setDataItemRawInvalid(insertLogInfo.raw);
 
         // step3 get page by page number
         Page page = null;
@@ -225,22 +358,54 @@ public class Recover {
 
         // step4 update page with the help of `recoverInsert()` from secondary page
         assert page != null;
+        page.lock();
         try {
             SecondaryPage.recoverInsert(page, insertLogInfo.raw, insertLogInfo.offset);
         } finally {
+            page.unlock();
             page.release();
         }
     }
 
-    // when DataManger log into log file, data item should be wrapped in advance
+    /**
+     * when DataManger log into log file, data item should be wrapped in advance
+     * only the ranges changed since `DataItem#before()` are logged,
+     * return null if nothing was changed
+     */
     public static byte[] updateLog(long xid, DataItem dataItem) {
-        byte[] logTypeRaw = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(dataItem.getUid());
         byte[] oldRaw = dataItem.getOldRaw();
         SubArray raw = dataItem.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logTypeRaw, xidRaw, uidRaw, oldRaw, newRaw);
+
+        // step1 find changed ranges, close ranges are merged since every range costs a header
+        List<int[]> ranges = new ArrayList<>();
+        int size = OF_DELTA_RANGES;
+        int i = 0;
+        while (i < oldRaw.length) {
+            if (oldRaw[i] == raw.raw.get(raw.start + i)) {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            for (int j = end; j < oldRaw.length && j - end < DELTA_GAP; j++) {
+                if (oldRaw[j] != raw.raw.get(raw.start + j)) end = j + 1;
+            }
+            ranges.add(new int[]{i, end});
+            size += DELTA_RANGE_HEADER_SIZE + 2 * (end - i);
+            i = end;
+        }
+        if (ranges.isEmpty()) return null;
+
+        // step2 [log type][xid][uid][range count][offset][length][old data][latest data]...
+        ByteBuffer log = ByteBuffer.allocate(size);
+        log.put(LOG_TYPE_DELTA).putLong(xid).putLong(dataItem.getUid()).putShort((short) ranges.size());
+        for (int[] range : ranges) {
+            int length = range[1] - range[0];
+            log.putShort((short) range[0]).putShort((short) length);
+            log.put(oldRaw, range[0], length);
+            Parser.copy(raw.raw, raw.start + range[0], log, log.position(), length);
+            log.position(log.position() + length);
+        }
+        return log.array();
     }
 
 }
@@ -0,0 +1,80 @@
+package com.northeastern.edu.simpledb.backend.dm.cache;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DirtyPageWriter
+ * a background thread writing dirty pages of the page cache back
+ * in page number order, so that the threads of the queries don't
+ * pay for the write I/O when a page is evicted
+ */
+public class DirtyPageWriter {
+
+    // how often the writer wakes up, unit is millisecond
+    static final long WRITE_INTERVAL = 100;
+
+    // the maximum number of pages written in one round
+    static final int PAGES_PER_ROUND = 64;
+
+    private final PageCache pageCache;
+
+    private final ScheduledExecutorService executor;
+
+    // the number of pages written back, by the writer or by anybody else
+    private final LongAdder flushedPages = new LongAdder();
+
+    // pages per second measured in the last round of the writer
+    private volatile double flushRate;
+
+    private long lastFlushedPages;
+
+    private long lastRoundNanos;
+
+    DirtyPageWriter(PageCache pageCache) {
+        this.pageCache = pageCache;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dirty-page-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.lastRoundNanos = System.nanoTime();
+    }
+
+    void start() {
+        executor.scheduleWithFixedDelay(this::round, WRITE_INTERVAL, WRITE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(WRITE_INTERVAL * 10, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void round() {
+        pageCache.writeDirtyPages(Long.MAX_VALUE, PAGES_PER_ROUND, false);
+
+        long now = System.nanoTime();
+        long flushed = flushedPages.sum();
+        flushRate = (flushed - lastFlushedPages) * 1e9 / Math.max(1, now - lastRoundNanos);
+        lastFlushedPages = flushed;
+        lastRoundNanos = now;
+    }
+
+    void recordFlush() {
+        flushedPages.increment();
+    }
+
+    public long getFlushedPages() {
+        return flushedPages.sum();
+    }
+
+    public double getFlushRate() {
+        return flushRate;
+    }
+}
@@ -0,0 +1,108 @@
+package com.northeastern.edu.simpledb.backend.dm.cache;
+
+import com.northeastern.edu.simpledb.backend.utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * MappedPageCache
+ * a page cache reading pages through a read-only memory mapping of
+ * the database file instead of read system calls
+ *
+ * a page is copied from the mapping into a frame of the arena and
+ * modified there, pages are written back with positional writes like
+ * the plain page cache, so the OS can't write a page to the file
+ * before the logs up to its pageLSN are durable
+ *
+ * the file is mapped in segments of SEGMENT_SIZE bytes, a segment is
+ * mapped only when the file covers it entirely, mapping never extends
+ * the file. pages in the tail of the file are read with system calls
+ */
+public class MappedPageCache extends PageCache {
+
+    // the size of every mapped segment, it is a multiple of PAGE_SIZE
+    static final long SEGMENT_SIZE = 1L << 22;
+
+    private static final int PAGES_PER_SEGMENT = (int) (SEGMENT_SIZE / PAGE_SIZE);
+
+    private volatile MappedByteBuffer[] segments;
+
+    private final Lock mapLock;
+
+    public MappedPageCache(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
+        super(file, fileChannel, maxResource);
+        this.segments = new MappedByteBuffer[0];
+        this.mapLock = new ReentrantLock();
+        try {
+            map(getPageNumber());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * make sure the segments up to the one holding `pageNumber` are mapped
+     * as far as the file covers them, return the segment, null if the file
+     * doesn't cover it yet
+     */
+    private MappedByteBuffer map(int pageNumber) throws IOException {
+        int index = (pageNumber - 1) / PAGES_PER_SEGMENT;
+        MappedByteBuffer[] mapped = segments;
+        if (index < mapped.length) return mapped[index];
+
+        mapLock.lock();
+        try {
+            mapped = segments;
+            if (index >= mapped.length) {
+                int covered = (int) Math.min(index + 1, fc.size() / SEGMENT_SIZE);
+                if (covered <= mapped.length) return null;
+                MappedByteBuffer[] grown = Arrays.copyOf(mapped, covered);
+                for (int i = mapped.length; i < covered; i++) {
+                    grown[i] = fc.map(FileChannel.MapMode.READ_ONLY, i * SEGMENT_SIZE, SEGMENT_SIZE);
+                }
+                segments = grown;
+                mapped = grown;
+            }
+        } finally {
+            mapLock.unlock();
+        }
+        return index < mapped.length ? mapped[index] : null;
+    }
+
+    // copy the page from the mapping into a frame, the mapping itself is never modified
+    @Override
+    protected ByteBuffer loadFrame(int pageNumber) throws Exception {
+        MappedByteBuffer segment = map(pageNumber);
+        if (segment == null) return super.loadFrame(pageNumber);
+
+        ByteBuffer frame = allocateFrame();
+        int offset = (int) (pageOffset(pageNumber) % SEGMENT_SIZE);
+        ByteBuffer page = segment.duplicate();
+        page.position(offset);
+        page.limit(offset + PAGE_SIZE);
+        ByteBuffer buf = frame.duplicate();
+        buf.clear();
+        buf.put(page);
+        return frame;
+    }
+
+    // the segments beyond the new end are dropped before the file is cut, they must not be read any more
+    @Override
+    protected void truncateFile(int maxPageNumber) throws IOException {
+        mapLock.lock();
+        try {
+            int covered = (int) (pageOffset(maxPageNumber + 1) / SEGMENT_SIZE);
+            if (covered < segments.length) segments = Arrays.copyOf(segments, covered);
+            super.truncateFile(maxPageNumber);
+        } finally {
+            mapLock.unlock();
+        }
+    }
+}
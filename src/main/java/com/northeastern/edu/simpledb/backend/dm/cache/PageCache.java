@@ -2,6 +2,7 @@ package com.northeastern.edu.simpledb.backend.dm.cache;
 
 import com.northeastern.edu.simpledb.backend.common.AbstractCache;
 import com.northeastern.edu.simpledb.backend.dm.page.Page;
+import com.northeastern.edu.simpledb.backend.utils.LatencyHistogram;
 import com.northeastern.edu.simpledb.backend.utils.Panic;
 import com.northeastern.edu.simpledb.common.Error;
 
@@ -9,9 +10,14 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 
 public class PageCache extends AbstractCache<Page> implements PageCacheHandler {
 
@@ -19,15 +25,47 @@ public class PageCache extends AbstractCache<Page> implements PageCacheHandler {
 
     public static final String DB_SUFFIX = ".db";
 
-    private RandomAccessFile file;
+    // the maximum number of page reads and writes in flight at the same time
+    public static final int DEFAULT_IO_CONCURRENCY = Runtime.getRuntime().availableProcessors() * 2;
 
-    private FileChannel fc;
+    protected final RandomAccessFile file;
 
-    private Lock fileLock;
+    protected final FileChannel fc;
+
+    // page I/O is positional, the permits only bound how many requests hit the device together
+    private final Semaphore ioPermits;
+
+    private final LatencyHistogram readLatency;
+
+    private final LatencyHistogram writeLatency;
 
     private AtomicInteger pageNumbers;
 
+    /**
+     * dirty page table
+     * pages modified but not written back yet, sorted by page number
+     * format: {pageNumber: Page}
+     */
+    private ConcurrentSkipListMap<Integer, Page> dirtyPages;
+
+    // the current checkpoint epoch, a page records it when it enters the dirty page table
+    private AtomicLong epoch;
+
+    private DirtyPageWriter writer;
+
+    private PageReadAhead readAhead;
+
+    // invoked before a page is written, it makes the logs written so far durable
+    private volatile LongConsumer writeAheadBarrier = lsn -> {};
+
+    // off-heap frames holding the cached pages, one frame per cache slot
+    private final PageFrameArena arena;
+
     public PageCache(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
+        this(file, fileChannel, maxResource, DEFAULT_IO_CONCURRENCY);
+    }
+
+    public PageCache(RandomAccessFile file, FileChannel fileChannel, int maxResource, int ioConcurrency) {
         super(maxResource);
         if (maxResource < MEM_MIN_LIM) Panic.panic(Error.MemTooSmallException);
         long length = 0;
@@ -38,42 +76,102 @@ public class PageCache extends AbstractCache<Page> implements PageCacheHandler {
         }
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int) length / PAGE_SIZE);
+        this.ioPermits = new Semaphore(Math.max(1, ioConcurrency));
+        this.readLatency = new LatencyHistogram();
+        this.writeLatency = new LatencyHistogram();
+        this.pageNumbers = new AtomicInteger((int) (length / PAGE_SIZE));
+        this.arena = new PageFrameArena(maxResource);
+        this.dirtyPages = new ConcurrentSkipListMap<>();
+        this.epoch = new AtomicLong(1);
+        this.writer = new DirtyPageWriter(this);
+        writer.start();
+        this.readAhead = new PageReadAhead(this);
     }
 
     // turn off caching and write back all resources
     @Override
     public void close() {
+        readAhead.stop();
+        writer.stop();
         super.close();
         try {
-            fc.close();
-            file.close();
+            closeFile();
         } catch (IOException e) {
             Panic.panic(e);
         }
     }
 
     /**
-     * read page from database file based on pageNumber, and
-     * encapsulate it as Page
+     * read page from database file based on pageNumber into a
+     * frame, and encapsulate it as Page
      */
     @Override
-    protected Page getForCache(long key) {
+    protected Page getForCache(long key) throws Exception {
         int pageNumber = (int) key;
-        long offset = pageOffset(pageNumber);
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+        ByteBuffer frame = null;
+        ioPermits.acquireUninterruptibly();
+        long start = System.nanoTime();
         try {
-            fc.position(offset);
-            fc.read(buf);
+            frame = loadFrame(pageNumber);
         } catch (IOException e) {
             Panic.panic(e);
         } finally {
-            fileLock.unlock();
+            readLatency.record(System.nanoTime() - start);
+            ioPermits.release();
+        }
+        return new Page(pageNumber, frame, this);
+    }
+
+    // read the page from database file into a free frame of the arena
+    protected ByteBuffer loadFrame(int pageNumber) throws Exception {
+        ByteBuffer frame = allocateFrame();
+        long offset = pageOffset(pageNumber);
+        ByteBuffer buf = frame.duplicate();
+        buf.clear();
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, offset + buf.position()) < 0) break;
+        }
+        // a page beyond the end of file is zeros, the frame may still hold an evicted page
+        while (buf.hasRemaining()) {
+            buf.put((byte) 0);
         }
-        return new Page(pageNumber, buf.array(), this);
+        return frame;
+    }
+
+    protected ByteBuffer allocateFrame() throws Exception {
+        ByteBuffer frame = arena.allocate();
+        if (frame == null) throw Error.CacheFullException;
+        return frame;
+    }
+
+    // the page was evicted, its frame can hold another page
+    protected void releaseFrame(ByteBuffer frame) {
+        arena.free(frame);
+    }
+
+    // write the page to database file
+    protected void writePage(int pageNumber, ByteBuffer data) throws IOException {
+        long offset = pageOffset(pageNumber);
+        ByteBuffer buf = data.duplicate();
+        buf.clear();
+        while (buf.hasRemaining()) {
+            fc.write(buf, offset + buf.position());
+        }
+    }
+
+    // cut the database file right after `maxPageNumber`
+    protected void truncateFile(int maxPageNumber) throws IOException {
+        file.setLength(pageOffset(maxPageNumber + 1));
+    }
+
+    protected void forceFile() throws IOException {
+        fc.force(false);
+    }
+
+    protected void closeFile() throws IOException {
+        fc.close();
+        file.close();
     }
 
     // calculate offset from the beginning based on page number
@@ -81,20 +179,166 @@ public class PageCache extends AbstractCache<Page> implements PageCacheHandler {
         return (long) (pageNumber - 1) * PAGE_SIZE;
     }
 
-    // release cache, and write back to disk
+    // unpinned pages stay in the buffer pool until the clock sweep evicts them
+    @Override
+    protected boolean retainOnRelease() {
+        return true;
+    }
+
+    // evict page from cache, write it back to disk, and recycle its frame
     @Override
     protected void releaseForCache(Page page) {
-        if (page.isDirty()) {
-            flushPage(page);
-            page.setDirty(false);
+        page.lock();
+        try {
+            if (page.isDirty()) {
+                writeBack(page, true);
+            }
+            dirtyPages.remove(page.getPageNumber(), page);
+            ByteBuffer frame = page.detachFrame();
+            if (frame != null) releaseFrame(frame);
+        } finally {
+            page.unlock();
+        }
+    }
+
+    // the page is dropped without writing it back, e.g. it was truncated
+    @Override
+    protected void discardForCache(Page page) {
+        page.lock();
+        try {
+            dirtyPages.remove(page.getPageNumber(), page);
+            ByteBuffer frame = page.detachFrame();
+            if (frame != null) releaseFrame(frame);
+        } finally {
+            page.unlock();
         }
     }
 
+    // put page into the dirty page table, it is invoked by Page#setDirty
+    public void markDirty(Page page) {
+        dirtyPages.computeIfAbsent(page.getPageNumber(), k -> {
+            page.setDirtyEpoch(epoch.get());
+            return page;
+        });
+    }
+
+    /**
+     * write page back and take it out of the dirty page table, modifiers
+     * are kept away meanwhile, if `wait` is false a page being modified
+     * is skipped, return whether the page was written
+     */
+    private boolean writeBack(Page page, boolean wait) {
+        // the lock keeps the frame from being recycled while it is written
+        page.lock();
+        try {
+            if (page.getData() == null) {
+                // evicted by someone else meanwhile, it was written back then
+                dirtyPages.remove(page.getPageNumber(), page);
+                return false;
+            }
+            if (!page.latch(wait)) return false;
+            try {
+                flush(page);
+                writer.recordFlush();
+                page.setDirty(false);
+                dirtyPages.remove(page.getPageNumber(), page);
+                return true;
+            } finally {
+                page.unlatch();
+            }
+        } finally {
+            page.unlock();
+        }
+    }
+
+    /**
+     * write back at most `limit` dirty pages in page number order,
+     * only pages dirtied in `maxEpoch` or earlier are written, pages
+     * being modified are skipped unless `wait` is true
+     * return the number of pages written
+     */
+    int writeDirtyPages(long maxEpoch, int limit, boolean wait) {
+        int written = 0;
+        for (Map.Entry<Integer, Page> entry : dirtyPages.entrySet()) {
+            if (written >= limit) break;
+            Page page = entry.getValue();
+            if (page.getDirtyEpoch() > maxEpoch) continue;
+            if (writeBack(page, wait)) written++;
+        }
+        return written;
+    }
+
+    /**
+     * start a fuzzy checkpoint, pages dirtied from now on belong to
+     * the next epoch, return the epoch the checkpoint has to flush
+     */
+    public long beginCheckpoint() {
+        return epoch.getAndIncrement();
+    }
+
+    /**
+     * write back every page dirtied up to `checkpointEpoch` once, then
+     * force the database file. A page dirtied again after it is written
+     * keeps its old epoch, so the pages are taken before any is written
+     */
+    public void flushCheckpoint(long checkpointEpoch) {
+        List<Page> pages = new ArrayList<>();
+        for (Page page : dirtyPages.values()) {
+            if (page.getDirtyEpoch() <= checkpointEpoch) pages.add(page);
+        }
+        for (Page page : pages) {
+            writeBack(page, true);
+        }
+        force();
+    }
+
+    // force the database file to disk
+    public void force() {
+        try {
+            forceFile();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // frames of the arena not holding any page
+    public int getFreeFrameCount() {
+        return arena.getFreeFrameCount();
+    }
+
+    // pages loaded by read-ahead, sequential scans and hints together
+    public long getReadAheadPages() {
+        return readAhead.getLoadedPages();
+    }
+
+    public int getDirtyPageCount() {
+        return dirtyPages.size();
+    }
+
+    public long getFlushedPages() {
+        return writer.getFlushedPages();
+    }
+
+    // pages per second written back by the background writer in its last round
+    public double getFlushRate() {
+        return writer.getFlushRate();
+    }
+
+    // latency of every page read from the database file
+    public LatencyHistogram getReadLatency() {
+        return readLatency;
+    }
+
+    // latency of every page write to the database file
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
     // create a new page based on data, then flush to disk
     @Override
     public int newPage(byte[] initData) {
         int pageNumber = pageNumbers.incrementAndGet();
-        Page page = new Page(pageNumber, initData, null);
+        Page page = new Page(pageNumber, ByteBuffer.wrap(initData), null);
         flush(page);
         return pageNumber;
     }
@@ -102,21 +346,33 @@ public class PageCache extends AbstractCache<Page> implements PageCacheHandler {
     // get page from cache by page number
     @Override
     public Page getPage(int pageNumber) throws Exception {
+        readAhead.onAccess(pageNumber);
         return get(pageNumber);
     }
 
+    // a hint that the page will be read soon, it is loaded in background
+    public void prefetch(int pageNumber) {
+        readAhead.prefetch(pageNumber);
+    }
+
+    // load the page without pinning it, invoked by the read-ahead threads
+    boolean preload(int pageNumber) throws Exception {
+        return super.preload(pageNumber);
+    }
+
     // release page from cache
     @Override
     public void release(Page page) {
         release(page.getPageNumber());
     }
 
-    // truncate file based on max page number
+    // truncate file based on max page number, the cached pages beyond it are dropped
     @Override
     public void truncateByPageNumber(int maxPageNumber) {
-        long size = pageOffset(maxPageNumber + 1);
+        invalidate(key -> key > maxPageNumber);
+        dirtyPages.tailMap(maxPageNumber, false).clear();
         try {
-            file.setLength(size);
+            truncateFile(maxPageNumber);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -130,22 +386,25 @@ public class PageCache extends AbstractCache<Page> implements PageCacheHandler {
 
     @Override
     public void flushPage(Page page) {
-        flush(page);
+        writeBack(page, true);
     }
 
-    private void flush(Page page) {
-        int pageNumber = page.getPageNumber();
-        long offset = pageOffset(pageNumber);
+    // the barrier is given the pageLSN of a page and returns once the log at it is durable
+    public void setWriteAheadBarrier(LongConsumer writeAheadBarrier) {
+        this.writeAheadBarrier = writeAheadBarrier;
+    }
 
-        fileLock.lock();
+    private void flush(Page page) {
+        writeAheadBarrier.accept(page.getLsn());
+        ioPermits.acquireUninterruptibly();
+        long start = System.nanoTime();
         try {
-            ByteBuffer buf = ByteBuffer.wrap(page.getData());
-            fc.position(offset);
-            fc.write(buf);
+            writePage(page.getPageNumber(), page.getData());
         } catch (IOException e) {
             Panic.panic(e);
         } finally {
-            fileLock.unlock();
+            writeLatency.record(System.nanoTime() - start);
+            ioPermits.release();
         }
     }
 }
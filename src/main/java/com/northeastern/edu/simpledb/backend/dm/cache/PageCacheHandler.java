@@ -23,6 +23,11 @@ public interface PageCacheHandler {
     void flushPage(Page pg);
 
     static PageCache create(String path, long memory) {
+        return create(path, memory, false);
+    }
+
+    // `mapped` chooses the memory mapped page cache instead of the one using read and write
+    static PageCache create(String path, long memory, boolean mapped) {
         File f = new File(path + PageCache.DB_SUFFIX);
         try {
             if (!f.createNewFile()) {
@@ -40,10 +45,14 @@ public interface PageCacheHandler {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCache(raf, fc, (int) memory / PAGE_SIZE);
+        return newPageCache(raf, fc, memory, mapped);
     }
 
     static PageCache open(String path, long memory) {
+        return open(path, memory, false);
+    }
+
+    static PageCache open(String path, long memory, boolean mapped) {
         File f = new File(path + PageCache.DB_SUFFIX);
         if (!f.exists()) Panic.panic(Error.FileNotExistsException);
         if (!f.canRead() || !f.canWrite()) Panic.panic(Error.FileCannotRWException);
@@ -56,6 +65,11 @@ public interface PageCacheHandler {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCache(raf, fc, (int) memory / PAGE_SIZE);
+        return newPageCache(raf, fc, memory, mapped);
+    }
+
+    private static PageCache newPageCache(RandomAccessFile raf, FileChannel fc, long memory, boolean mapped) {
+        int maxResource = (int) (memory / PAGE_SIZE);
+        return mapped ? new MappedPageCache(raf, fc, maxResource) : new PageCache(raf, fc, maxResource);
     }
 }
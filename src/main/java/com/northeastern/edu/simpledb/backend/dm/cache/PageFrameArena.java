@@ -0,0 +1,56 @@
+package com.northeastern.edu.simpledb.backend.dm.cache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import static com.northeastern.edu.simpledb.backend.dm.cache.PageCacheHandler.PAGE_SIZE;
+
+/**
+ * PageFrameArena
+ * a fixed number of off-heap page frames allocated when the page
+ * cache starts, a miss takes a frame and an eviction gives it back,
+ * so the size of the buffer pool doesn't show up on the Java heap
+ */
+public class PageFrameArena {
+
+    // frames are cut from direct buffers of this size, a single buffer can't go beyond 2GB
+    private static final int CHUNK_SIZE = 1 << 26;
+
+    private static final int FRAMES_PER_CHUNK = CHUNK_SIZE / PAGE_SIZE;
+
+    private final int frameCount;
+
+    private final ArrayBlockingQueue<ByteBuffer> freeFrames;
+
+    public PageFrameArena(int frameCount) {
+        this.frameCount = frameCount;
+        this.freeFrames = new ArrayBlockingQueue<>(frameCount);
+        for (int allocated = 0; allocated < frameCount; allocated += FRAMES_PER_CHUNK) {
+            int frames = Math.min(FRAMES_PER_CHUNK, frameCount - allocated);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(frames * PAGE_SIZE);
+            for (int i = 0; i < frames; i++) {
+                chunk.limit((i + 1) * PAGE_SIZE);
+                chunk.position(i * PAGE_SIZE);
+                freeFrames.add(chunk.slice());
+            }
+        }
+    }
+
+    // take a free frame, null if every frame is in use
+    public ByteBuffer allocate() {
+        return freeFrames.poll();
+    }
+
+    // give the frame back, its content is garbage from now on
+    public void free(ByteBuffer frame) {
+        freeFrames.offer(frame);
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getFreeFrameCount() {
+        return freeFrames.size();
+    }
+}
@@ -0,0 +1,113 @@
+package com.northeastern.edu.simpledb.backend.dm.cache;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PageReadAhead
+ * loads pages into the page cache in background before they are
+ * asked for. a thread reading consecutive pages is detected as a
+ * sequential scan and the next READ_AHEAD_WINDOW pages are read
+ * ahead of it, callers knowing their next pages can hint them too
+ */
+public class PageReadAhead {
+
+    // a scan is sequential once this many consecutive pages were read in a row
+    static final int SEQUENTIAL_THRESHOLD = 3;
+
+    // how many pages are read ahead of a sequential scan
+    static final int READ_AHEAD_WINDOW = 16;
+
+    private static final int THREADS = 4;
+
+    // pending read-ahead beyond this is dropped, it is only a hint
+    private static final int QUEUE_SIZE = 256;
+
+    private final PageCache pageCache;
+
+    private final ThreadPoolExecutor executor;
+
+    // the access pattern of every thread reading pages
+    private final ThreadLocal<Stream> streams;
+
+    // the number of pages loaded by read-ahead
+    private final LongAdder loadedPages;
+
+    private static final class Stream {
+        int lastPage;
+        int run;
+        // the last page read ahead for this stream
+        int readAheadTo;
+    }
+
+    PageReadAhead(PageCache pageCache) {
+        this.pageCache = pageCache;
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+            Thread t = new Thread(r, "page-read-ahead");
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        this.streams = ThreadLocal.withInitial(Stream::new);
+        this.loadedPages = new LongAdder();
+    }
+
+    /**
+     * record that the current thread reads `pageNumber`, once the
+     * thread is scanning sequentially the window in front of it is
+     * refilled every time half of it has been consumed
+     */
+    void onAccess(int pageNumber) {
+        Stream stream = streams.get();
+        if (pageNumber == stream.lastPage) return;
+        if (pageNumber == stream.lastPage + 1) {
+            stream.run++;
+        } else {
+            stream.run = 0;
+            stream.readAheadTo = 0;
+        }
+        stream.lastPage = pageNumber;
+        if (stream.run < SEQUENTIAL_THRESHOLD) return;
+        if (stream.readAheadTo - pageNumber > READ_AHEAD_WINDOW / 2) return;
+
+        int from = Math.max(pageNumber + 1, stream.readAheadTo + 1);
+        int to = Math.min(pageNumber + READ_AHEAD_WINDOW, pageCache.getPageNumber());
+        for (int i = from; i <= to; i++) {
+            prefetch(i);
+        }
+        stream.readAheadTo = Math.max(stream.readAheadTo, to);
+    }
+
+    // load the page in background, it is dropped if too many pages are pending
+    void prefetch(int pageNumber) {
+        if (pageNumber < 1 || pageNumber > pageCache.getPageNumber()) return;
+        executor.execute(() -> {
+            try {
+                if (pageCache.preload(pageNumber)) loadedPages.increment();
+            } catch (Exception ignored) {
+                // the cache is full of pinned pages, the reader will load the page by itself
+            }
+        });
+    }
+
+    /**
+     * drop the pending pages and wait for the ones being loaded, the
+     * threads are not interrupted, an interrupt during page I/O would
+     * close the file channel of the page cache
+     */
+    void stop() {
+        executor.getQueue().clear();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getLoadedPages() {
+        return loadedPages.sum();
+    }
+}
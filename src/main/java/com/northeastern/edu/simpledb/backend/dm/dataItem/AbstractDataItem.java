@@ -8,7 +8,7 @@ import com.northeastern.edu.simpledb.backend.dm.page.Page;
 import com.northeastern.edu.simpledb.backend.utils.Parser;
 import com.northeastern.edu.simpledb.backend.utils.Types;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * AbstractDataItem
@@ -28,6 +28,8 @@ public abstract class AbstractDataItem {
     abstract void unlock();
     abstract void rLock();
     abstract void rUnLock();
+    abstract long startRead();
+    abstract boolean validate(long version);
 
     abstract Page page();
     abstract long getUid();
@@ -43,11 +45,11 @@ public abstract class AbstractDataItem {
 
     // parsing raw to DataItem starting from the offset of page
     public static DataItem parseDataItem(Page page, short offset, DataManger dm) {
-        byte[] raw = page.getData();
-        short dataSize = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItem.OF_SIZE, offset + DataItem.OF_DATA));
+        ByteBuffer raw = page.getData();
+        short dataSize = raw.getShort(offset + DataItem.OF_SIZE);
         short length = (short) (dataSize + DataItem.OF_DATA);  // total length of data item
         long uid = Types.addressToUid(page.getPageNumber(), offset);
-        return new DataItem(new SubArray(raw, offset, offset + length), new byte[length], page, uid, dm);
+        return new DataItem(new SubArray(raw, offset, offset + length), null, page, uid, dm);
     }
 
     public static void setDataItemRawInvalid(byte[] raw) {
@@ -3,9 +3,10 @@ package com.northeastern.edu.simpledb.backend.dm.dataItem;
 import com.northeastern.edu.simpledb.backend.common.SubArray;
 import com.northeastern.edu.simpledb.backend.dm.DataManger;
 import com.northeastern.edu.simpledb.backend.dm.page.Page;
+import com.northeastern.edu.simpledb.backend.utils.Parser;
 
+import java.lang.invoke.VarHandle;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DataItem extends AbstractDataItem {
@@ -17,9 +18,13 @@ public class DataItem extends AbstractDataItem {
     static final byte VALID_STATE = 0b0;
 
     private SubArray raw;
+    // allocated by the first before(), most data items are only read
     private byte[] oldRaw;
+    private ReentrantReadWriteLock lock;
     private Lock rLock;
     private Lock wLock;
+    // even while no one holds the write lock, it changes whenever the write lock is taken or released
+    private volatile long version;
     private DataManger dm;
     private long uid;
     private Page page;
@@ -27,7 +32,7 @@ public class DataItem extends AbstractDataItem {
     public DataItem(SubArray raw, byte[] oldRaw, Page page, long uid, DataManger dm) {
         this.raw = raw;
         this.oldRaw = oldRaw;
-        ReadWriteLock lock = new ReentrantReadWriteLock();
+        lock = new ReentrantReadWriteLock();
         rLock = lock.readLock();
         wLock = lock.writeLock();
         this.dm = dm;
@@ -36,13 +41,13 @@ public class DataItem extends AbstractDataItem {
     }
 
     public boolean isValid() {
-        return raw.raw[raw.start + OF_VALID] == VALID_STATE;
+        return raw.raw.get(raw.start + OF_VALID) == VALID_STATE;
     }
 
     /**
-     * The array returned by this method is data shared. Since
-     * the array copy in Java will be allocated to a new address,
-     * SubArray is used for data sharing between threads.
+     * The buffer returned by this method is data shared. It is
+     * the frame of the page, so SubArray is used for data sharing
+     * between threads.
      */
     @Override
     public SubArray data() {
@@ -59,27 +64,29 @@ public class DataItem extends AbstractDataItem {
      *  DM will ensure that modifications to DataItem are atomic.
      */
 
-    // save the previous phase data
+    // save the previous phase data, the page isn't written back until after() or unBefore()
     @Override
     public void before() {
-        wLock.lock();
-        page.setDirty(true);
-        System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length); // latestRaw becomes oldRaw
+        lock();
+        page.startModify();
+        if (oldRaw == null) oldRaw = new byte[raw.end - raw.start];
+        Parser.get(raw.raw, raw.start, oldRaw); // latestRaw becomes oldRaw
     }
 
     // undo the previous action
     @Override
     public void unBefore() {
-        wLock.lock();
-        page.setDirty(true);
-        System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length); // oldRaw overwrite latestRaw
+        Parser.put(raw.raw, raw.start, oldRaw); // oldRaw overwrite latestRaw
+        page.endModify();
+        unlock();
     }
 
-    // log in time
+    // log in time, only the ranges changed since before() are logged
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this);
-        wLock.unlock();
+        page.endModify();
+        unlock();
     }
 
     // after using data item, release it from DataManager
@@ -91,10 +98,16 @@ public class DataItem extends AbstractDataItem {
     @Override
     public void lock() {
         wLock.lock();
+        if (lock.getWriteHoldCount() == 1) {
+            version++;
+            // the writes of the data can't be seen before the version turns odd
+            VarHandle.storeStoreFence();
+        }
     }
 
     @Override
     public void unlock() {
+        if (lock.getWriteHoldCount() == 1) version++;
         wLock.unlock();
     }
 
@@ -108,6 +121,23 @@ public class DataItem extends AbstractDataItem {
         rLock.unlock();
     }
 
+    /**
+     * start reading the data without the read lock, the reading is valid
+     * if `validate()` returns true with the returned version afterwards,
+     * the data read before may be torn, it must not be trusted until then
+     */
+    @Override
+    public long startRead() {
+        return version;
+    }
+
+    // whether the data isn't modified since `startRead()` returned `version`
+    @Override
+    public boolean validate(long version) {
+        VarHandle.loadLoadFence();
+        return (version & 1) == 0 && this.version == version;
+    }
+
     @Override
     public Page page() {
         return page;
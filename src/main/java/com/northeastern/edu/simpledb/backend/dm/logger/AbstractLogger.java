@@ -1,28 +1,33 @@
 package com.northeastern.edu.simpledb.backend.dm.logger;
 
 import com.northeastern.edu.simpledb.backend.utils.Panic;
-import com.northeastern.edu.simpledb.backend.utils.Parser;
 import com.northeastern.edu.simpledb.common.Error;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-
-import static com.northeastern.edu.simpledb.backend.dm.logger.Logger.LOG_SUFFIX;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 
 abstract class AbstractLogger {
-    abstract void log(byte[] data);
+    abstract long log(byte[] data);
+    abstract void flush(long position);
     abstract void truncate(long x) throws IOException;
     abstract byte[] next();
     abstract void rewind();
+    abstract void seek(long position);
+    abstract long size();
     abstract void close();
 
     // create log file based on path, initialize logger
     public static Logger create(String path) {
-        File f = new File(path + LOG_SUFFIX);
+        return create(path, Logger.SEGMENT_SIZE);
+    }
+
+    static Logger create(String path, long segmentSize) {
+        File f = Logger.segmentFile(path, 0);
         try {
             if (!f.createNewFile()) {
                 Panic.panic(Error.FileExistsException);
@@ -31,46 +36,64 @@ abstract class AbstractLogger {
             throw new RuntimeException(e);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
+        NavigableMap<Long, LogSegment> segments = new TreeMap<>();
         try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-
-        try {
-            fc.position(0);
-            fc.write(buf);
+            LogSegment segment = LogSegment.create(f, 0);
+            segments.put(segment.base, segment);
         } catch (IOException e) {
             Panic.panic(e);
         }
 
-        return new Logger(raf, fc, 0);
+        Logger logger = new Logger(path, segments, 1, segmentSize);
+        logger.start();
+        return logger;
     }
 
-    // open log file based on path, init, check and format logger
+    // open every segment of the log based on path, init, check and format logger
     public static Logger open(String path) {
-        File f = new File(path + LOG_SUFFIX);
-
-        if (!f.exists()) Panic.panic(Error.FileNotExistsException);
-        if (!f.canRead() || !f.canWrite()) Panic.panic(Error.FileCannotRWException);
+        return open(path, Logger.SEGMENT_SIZE);
+    }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
+    static Logger open(String path, long segmentSize) {
+        NavigableMap<Long, LogSegment> segments = new TreeMap<>();
+        long nextSequence = 0;
+        for (long sequence : segmentSequences(path)) {
+            File f = Logger.segmentFile(path, sequence);
+            if (!f.canRead() || !f.canWrite()) Panic.panic(Error.FileCannotRWException);
+            try {
+                LogSegment segment = LogSegment.open(f);
+                segments.put(segment.base, segment);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            nextSequence = sequence + 1;
         }
+        if (segments.isEmpty()) Panic.panic(Error.FileNotExistsException);
 
-        Logger logger = new Logger(raf, fc);
+        Logger logger = new Logger(path, segments, nextSequence, segmentSize);
         logger.init();
+        logger.start();
 
         return logger;
     }
+
+    // the sequence numbers of the segment files of the log in ascending order
+    static List<Long> segmentSequences(String path) {
+        File first = Logger.segmentFile(path, 0);
+        File dir = first.getAbsoluteFile().getParentFile();
+        String prefix = first.getName() + ".";
+        List<Long> sequences = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) return sequences;
+        for (String name : names) {
+            if (name.equals(first.getName())) {
+                sequences.add(0L);
+            } else if (name.startsWith(prefix) && name.length() > prefix.length()
+                    && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                sequences.add(Long.parseLong(name.substring(prefix.length())));
+            }
+        }
+        Collections.sort(sequences);
+        return sequences;
+    }
 }
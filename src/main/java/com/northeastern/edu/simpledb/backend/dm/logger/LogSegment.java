@@ -0,0 +1,134 @@
+package com.northeastern.edu.simpledb.backend.dm.logger;
+
+import com.northeastern.edu.simpledb.backend.utils.Panic;
+import com.northeastern.edu.simpledb.common.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Log Segment
+ * the log is split into segment files, a segment holds the logs from
+ * its base position on, positions of logs keep growing across segments
+ *
+ * format: [Magic: 4bytes][Version: 4bytes][BasePosition: 8bytes][HeaderChecksum: 4bytes][log1][log2]...[logN]
+ * the logs of a version 2 segment are protected by CRC32C, the logs of a
+ * version 1 segment by the old polynomial checksum, both are readable
+ * a log file written before segments is read as a legacy segment of version 0:
+ * `[Xchecksum: 4bytes][log1][log2]...[logN]` whose base position is 0
+ */
+class LogSegment {
+
+    static final int MAGIC = 0x53444C47;
+
+    static final int VERSION = 2;
+
+    static final int HEADER_SIZE = 20;
+
+    static final int LEGACY_HEADER_SIZE = 4;
+
+    final File file;
+
+    final RandomAccessFile raf;
+
+    final FileChannel fc;
+
+    // the position of the first byte of the segment file
+    final long base;
+
+    final int headerSize;
+
+    // the format of the logs in the segment
+    final int version;
+
+    // the number of bytes in the segment file
+    volatile long size;
+
+    private LogSegment(File file, RandomAccessFile raf, long base, int headerSize, int version, long size) {
+        this.file = file;
+        this.raf = raf;
+        this.fc = raf.getChannel();
+        this.base = base;
+        this.headerSize = headerSize;
+        this.version = version;
+        this.size = size;
+    }
+
+    // create a segment file whose first log will be at `base + HEADER_SIZE`
+    static LogSegment create(File file, long base) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(base);
+        header.putInt(headerChecksum(header.array()));
+        header.flip();
+        raf.getChannel().write(header, 0);
+        raf.getChannel().force(true);
+        return new LogSegment(file, raf, base, HEADER_SIZE, VERSION, HEADER_SIZE);
+    }
+
+    /**
+     * open an existing segment file, a file without the magic number
+     * is a log file written before segments
+     */
+    static LogSegment open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long size = raf.length();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (size >= HEADER_SIZE) raf.getChannel().read(header, 0);
+        if (size < HEADER_SIZE || header.getInt(0) != MAGIC) {
+            if (size < LEGACY_HEADER_SIZE) Panic.panic(Error.BadLogFileException);
+            return new LogSegment(file, raf, 0, LEGACY_HEADER_SIZE, 0, size);
+        }
+        int version = header.getInt(4);
+        if (header.getInt(16) != headerChecksum(header.array()) || version < 1 || version > VERSION) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        return new LogSegment(file, raf, header.getLong(8), HEADER_SIZE, version, size);
+    }
+
+    static int headerChecksum(byte[] header) {
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, 16);
+        return (int) crc.getValue();
+    }
+
+    // the position of the first log
+    long first() {
+        return base + headerSize;
+    }
+
+    // the position right after the last log
+    long end() {
+        return base + size;
+    }
+
+    int read(ByteBuffer buf, long position) throws IOException {
+        return fc.read(buf, position - base);
+    }
+
+    void write(ByteBuffer buf, long position) throws IOException {
+        long offset = position - base;
+        while (buf.hasRemaining()) {
+            fc.write(buf, offset + buf.position());
+        }
+        size = Math.max(size, offset + buf.limit());
+    }
+
+    void truncate(long position) throws IOException {
+        fc.truncate(position - base);
+        size = position - base;
+    }
+
+    void force() throws IOException {
+        fc.force(false);
+    }
+
+    void close() throws IOException {
+        fc.close();
+        raf.close();
+    }
+}
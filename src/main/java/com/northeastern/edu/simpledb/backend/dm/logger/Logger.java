@@ -1,23 +1,48 @@
 package com.northeastern.edu.simpledb.backend.dm.logger;
 
-import com.google.common.primitives.Bytes;
 import com.northeastern.edu.simpledb.backend.utils.Panic;
 import com.northeastern.edu.simpledb.backend.utils.Parser;
 import com.northeastern.edu.simpledb.common.Error;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
-
-import static com.northeastern.edu.simpledb.common.Error.BadLogFileException;
-
+import java.util.zip.CRC32C;
+
+/**
+ * Logger
+ * logs are appended to an in-memory log buffer without a lock, a writer
+ * reserves the range of its log by moving an atomic counter, so the
+ * position (LSN) of every log is known before it is copied, and copies
+ * its log into the buffer in parallel with other writers. the flusher
+ * thread writes the completed prefix of the buffer to the log file and
+ * forces it when someone waits (group commit), `flush()` waits until a
+ * log is durable, so concurrent transactions committing together share a
+ * single fsync
+ *
+ * the log is split into segments of SEGMENT_SIZE bytes, a full segment
+ * is forced and sealed before the next one is created, so only the last
+ * segment can have a bad tail, and segments before the last checkpoint
+ * can be removed. the writer whose log doesn't fit into the segment
+ * reserves the header of the next segment along with its log
+ */
 public class Logger extends AbstractLogger{
 
-    // a prime number for calculating check sum
+    // a prime number for calculating the check sum of logs in old segments
     private static final int SEED = 13331;
 
     // starting position of attribute `size` in a log
@@ -32,196 +57,486 @@ public class Logger extends AbstractLogger{
     // standard suffix of log file
     public static final String LOG_SUFFIX = ".log";
 
+    // a segment is sealed once the next log would make it larger than this
+    static final long SEGMENT_SIZE = 1L << 24;
+
+    // the size of the log buffer, a power of 2
+    static final int BUFFER_SIZE = 1 << 22;
+
+    // the longest time the idle flusher sleeps before it looks at the buffer again
+    private static final long IDLE_NANOS = 1_000_000;
+
     private Lock lock;
-    private RandomAccessFile raf;
-    private FileChannel fc;
+
+    private final String path;
+
+    private final long segmentSize;
+
+    // every segment by its base position
+    private final NavigableMap<Long, LogSegment> segments;
+
+    // the segment the flusher writes logs to
+    private volatile LogSegment active;
+
+    // the sequence number of the next segment file
+    private long nextSequence;
 
     // the position of the pointer of logger
     private long position;
 
-    // the size of log file, it will be updated when `open()` from disk
-    private long fileSize;
+    // the position of the log returned by the last `next()`
+    private long lastPosition;
+
+    // a ring holding the logs between `written` and `reserved`, a position maps to `position & (BUFFER_SIZE - 1)`
+    private final ByteBuffer buffer;
+
+    // the position the next log will be reserved at
+    private final AtomicLong reserved = new AtomicLong();
+
+    // the base of the segment logs are reserved in
+    private volatile long reserveBase;
+
+    // taken by the writer whose log starts a new segment
+    private final Lock rotateLock = new ReentrantLock();
+
+    // the bases of the segments reserved but not created by the flusher yet
+    private final NavigableSet<Long> segmentStarts = new ConcurrentSkipListSet<>();
 
-    // the check sum of log file
-    private int xCheckSum;
+    // the logs before this position are copied into the buffer
+    private volatile long completed;
 
-    public Logger(RandomAccessFile raf, FileChannel fc) {
-        this.raf = raf;
-        this.fc = fc;
+    // the logs before this position are written to the log file
+    private volatile long written;
+
+    // the logs before this position are forced to disk
+    private volatile long durableSize;
+
+    private Condition flushed;
+
+    // a flush was asked for and the flusher hasn't started it yet
+    private volatile boolean flushPending;
+
+    private volatile boolean closed;
+
+    // the flusher is about to sleep, a writer completing a log wakes it up
+    private volatile boolean flusherIdle;
+
+    private Thread flusher;
+
+    // the number of fsyncs of logs
+    private final LongAdder forces = new LongAdder();
+
+    Logger(String path, NavigableMap<Long, LogSegment> segments, long nextSequence, long segmentSize) {
+        this.path = path;
+        this.segments = new ConcurrentSkipListMap<>(segments);
+        this.nextSequence = nextSequence;
+        this.segmentSize = segmentSize;
+        this.active = this.segments.lastEntry().getValue();
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
         this.lock = new ReentrantLock();
+        this.flushed = lock.newCondition();
+        this.flusher = new Thread(this::runFlusher, "log-flusher");
+        flusher.setDaemon(true);
+        resetEnd(active.end());
+        rewind();
     }
 
-    public Logger(RandomAccessFile raf, FileChannel fc, int xCheckSum) {
-        this.raf = raf;
-        this.fc = fc;
-        this.xCheckSum = xCheckSum;
-        this.lock = new ReentrantLock();
+    // the file of the `sequence`th segment, the first one keeps the name of the log file
+    static File segmentFile(String path, long sequence) {
+        return new File(sequence == 0 ? path + LOG_SUFFIX : path + LOG_SUFFIX + "." + sequence);
+    }
+
+    // start the flusher, logs can be appended from now on
+    void start() {
+        if (!flusher.isAlive()) flusher.start();
+    }
+
+    // every log before `end` is on disk, the next one goes there
+    private void resetEnd(long end) {
+        written = end;
+        durableSize = end;
+        completed = end;
+        reserved.set(end);
+        reserveBase = active.base;
     }
 
     /**
-     * load check sum of log file, update fileSize as same as the
-     * length of log file, and validate log file using check sum
+     * validate the last segment and remove its invalid tail, a segment
+     * of an older format is sealed and followed by a new segment
      */
     void init() {
-        long size = 0;
+        lock.lock();
         try {
-            size = raf.length();
+            LogSegment tail = segments.lastEntry().getValue();
+            position = tail.first();
+            while (true) {
+                byte[] log = internNext();
+                if (log == null) break;
+            }
+
+            try {
+                truncate(position);
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            resetEnd(position);
+
+            if (tail.version < LogSegment.VERSION) {
+                rotate(position);
+                resetEnd(active.first());
+            }
+        } finally {
+            lock.unlock();
+        }
+        rewind();
+    }
+
+    /**
+     * seal the active segment and write logs to a new one at `base` from
+     * now on, the sealed segment is forced first, so it never has a bad tail
+     */
+    private void rotate(long base) {
+        lock.lock();
+        try {
+            force(active);
+            LogSegment segment = LogSegment.create(segmentFile(path, nextSequence++), base);
+            segments.put(segment.base, segment);
+            active = segment;
+            durableSize = segment.first();
+            flushed.signalAll();
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        if (size < 4) Panic.panic(BadLogFileException);
-
-        // read size from log file
-        ByteBuffer buf = ByteBuffer.allocate(4);
+    private void force(LogSegment segment) {
         try {
-            fc.position(0);
-            fc.read(buf);
+            segment.force();
         } catch (IOException e) {
             Panic.panic(e);
         }
-
-        int xChecksum = Parser.parseInt(buf.array());
-        this.fileSize = size;
-        this.xCheckSum = xChecksum;
-
-        checkAndRemoveTail();
+        forces.increment();
     }
 
-    // validate log file, remove invalid tail
-    private void checkAndRemoveTail() {
-        rewind();
-
-        int xCheck = 0;
-        while (true) {
-            // get the next log
-            byte[] log = internNext();
-            // calculate xChecksum accumulate
-            if (log == null) break;
-            xCheck = calChecksum(xCheck, log);
+    /**
+     * the flusher writes the completed logs to the log file as they come,
+     * and forces them whenever a flush is asked for, the logs completed
+     * while it is forcing join the next batch
+     */
+    private void runFlusher() {
+        for (;;) {
+            long end = completed;
+            if (end > written) writeOut(end);
+
+            if (flushPending && written > durableSize) {
+                flushPending = false;
+                force(active);
+                lock.lock();
+                try {
+                    durableSize = Math.max(durableSize, written);
+                    flushed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                continue;
+            }
+
+            if (completed != written) continue;
+            if (closed) return;
+            flusherIdle = true;
+            if (completed == written && !closed) LockSupport.parkNanos(IDLE_NANOS);
+            flusherIdle = false;
         }
+    }
 
-        if (xCheck != xCheckSum) Panic.panic(Error.BadLogFileException);
+    // write the logs between `written` and `end` to their segments, creating the segments reserved in between
+    private void writeOut(long end) {
+        long from = written;
+        while (from < end) {
+            Long base = segmentStarts.ceiling(from);
+            if (base == null || base >= end) {
+                writeBuffer(from, end);
+                break;
+            }
+            writeBuffer(from, base);
+            rotate(base);
+            segmentStarts.remove(base);
+            from = base + LogSegment.HEADER_SIZE;
+        }
+        written = end;
+    }
 
+    private void writeBuffer(long from, long to) {
+        if (from == to) return;
+        int offset = (int) (from & (BUFFER_SIZE - 1));
+        int length = (int) (to - from);
+        int head = Math.min(length, BUFFER_SIZE - offset);
         try {
-            truncate(position);
-        } catch (Exception e) {
+            active.write(slice(offset, head), from);
+            if (head < length) active.write(slice(0, length - head), from + head);
+        } catch (IOException e) {
             Panic.panic(e);
         }
+    }
 
-        try {
-            raf.seek(position);
-        } catch (Exception e) {
-            Panic.panic(e);
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer buf = buffer.duplicate();
+        buf.limit(offset + length);
+        buf.position(offset);
+        return buf.slice();
+    }
+
+    // copy bytes to the buffer at `position`, wrapping around its end
+    private void copy(long position, byte[] src) {
+        int offset = (int) (position & (BUFFER_SIZE - 1));
+        int head = Math.min(src.length, BUFFER_SIZE - offset);
+        ByteBuffer buf = buffer.duplicate();
+        buf.position(offset);
+        buf.put(src, 0, head);
+        if (head < src.length) {
+            buf.position(0);
+            buf.put(src, head, src.length - head);
         }
-        rewind();
     }
 
-    // calculate check sum of log file, then flush to disk
-    private void updateChecksum(byte[] log) {
-        this.xCheckSum = calChecksum(this.xCheckSum, log);
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(this.xCheckSum));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+    /**
+     * reserve `length` bytes for a log, a log that doesn't fit into the
+     * current segment reserves the header of the next segment before it
+     * return the start of the reserved range
+     */
+    private long reserve(int length) {
+        for (;;) {
+            long base = reserveBase;
+            long start = reserved.get();
+            if (fits(base, start, length)) {
+                if (reserved.compareAndSet(start, start + length)) return start;
+                continue;
+            }
+
+            rotateLock.lock();
+            try {
+                start = reserved.get();
+                if (fits(reserveBase, start, length)) continue;
+                if (reserved.compareAndSet(start, start + LogSegment.HEADER_SIZE + length)) {
+                    segmentStarts.add(start);
+                    reserveBase = start;
+                    return start;
+                }
+            } finally {
+                rotateLock.unlock();
+            }
         }
     }
 
-    // wrap data as a log
-    private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+    // an empty segment takes a log of any length
+    private boolean fits(long base, long start, int length) {
+        return start + length - base <= segmentSize || start == base + LogSegment.HEADER_SIZE;
+    }
+
+    // the logs before `start` are completed in order, so the flusher only sees whole logs
+    private void complete(long start, long end) {
+        for (int spins = 0; completed != start; spins++) {
+            if ((spins & 0xff) == 0xff) Thread.yield();
+            else Thread.onSpinWait();
+        }
+        completed = end;
+        if (flusherIdle) LockSupport.unpark(flusher);
     }
 
     /**
      * handle bad tail in two cases
-     * case1: position + OF_DATA > raf.length || position + OF_DATA + data size > raf.length
+     * case1: position + OF_DATA > end of segment || position + OF_DATA + data size > end of segment
      * case2: check sum1 != check sum2
+     * a sealed segment ends with a whole log, the pointer moves to the next segment then
      */
     private byte[] internNext() {
-        if (position + OF_DATA >= fileSize) return null;
+        Map.Entry<Long, LogSegment> entry = segments.floorEntry(position);
+        if (entry == null) return null;
+        LogSegment segment = entry.getValue();
+        // the end of a segment is the base of the next one, logs start after its header
+        if (position < segment.first()) position = segment.first();
+        if (position + OF_DATA > segment.end()) {
+            Map.Entry<Long, LogSegment> next = segments.higherEntry(segment.base);
+            if (next == null) return null;
+            position = next.getValue().first();
+            return internNext();
+        }
 
         // step1 check size of a log: [size][checksum][data]
         ByteBuffer tmp = ByteBuffer.allocate(4);
 
         try {
-            fc.position(position);
-            fc.read(tmp);
+            segment.read(tmp, position);
         } catch (IOException e) {
             Panic.panic(e);
         }
 
         int size = Parser.parseInt(tmp.array());
-        if (position + OF_DATA + size > fileSize) return null;
+        if (size < 0 || position + OF_DATA + size > segment.end()) return null;
 
         // step2 read whole check sum and data, then validate check sum
         ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
 
         try {
-            fc.position(position);
-            fc.read(buf);
+            segment.read(buf, position);
         } catch (Exception e) {
             Panic.panic(e);
         }
 
         byte[] log = buf.array();
-        int checksum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checksum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+        int checksum1 = segment.version < LogSegment.VERSION
+                ? seedChecksum(log, OF_DATA, size)
+                : checksum(log, OF_DATA, size);
+        int checksum2 = buf.getInt(OF_CHECKSUM);
         if (checksum1 != checksum2) return null;
 
         // step3 update position
+        lastPosition = position;
         position += log.length;
         return log;
     }
 
 
-    // calculate check sum based on xCheck and a log
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+    /**
+     * the CRC32C of the size and the data of a log, the data is
+     * `log[offset, offset + size)`, a broken size can't pass it either
+     */
+    static int checksum(byte[] log, int offset, int size) {
+        CRC32C crc = new CRC32C();
+        crc.update(size >>> 24);
+        crc.update(size >>> 16);
+        crc.update(size >>> 8);
+        crc.update(size);
+        crc.update(log, offset, size);
+        return (int) crc.getValue();
+    }
+
+    // the check sum of logs in segments of version 1 and before
+    static int seedChecksum(byte[] log, int offset, int size) {
+        int xCheck = 0;
+        for (int i = offset; i < offset + size; i++) {
+            xCheck = xCheck * SEED + log[i];
         }
         return xCheck;
     }
 
+    // cut the last segment at `position`
     @Override
     public void truncate(long position) throws IOException {
         lock.lock();
         try {
-            fc.truncate(position);
+            segments.lastEntry().getValue().truncate(position);
         } finally {
             lock.unlock();
         }
     }
 
-    // wrap data to log, write a log to log file, then update check sum of log file
+    /**
+     * wrap data to log and copy it to the log buffer, the format of a log
+     * is `[size][checksum][data]` and the check sum is the CRC32C of the
+     * size and the data, so a reader can skip a log by its size, the log reaches the log file soon and
+     * isn't durable until `flush()` returns for its position
+     * return the position (LSN) of the log in log file
+     */
     @Override
-    public void log(byte[] data) {
-        // step1 build log and its format is like `[size][checksum][data]`
-        byte[] log = wrapLog(data);
+    public long log(byte[] data) {
+        int length = OF_DATA + data.length;
+        if (length > BUFFER_SIZE) Panic.panic(Error.DataTooLargeException);
+        byte[] header = ByteBuffer.allocate(OF_DATA).putInt(data.length).putInt(checksum(data, 0, data.length)).array();
+
+        // step1 reserve the range of the log
+        long start = reserve(length);
+        long position = segmentStarts.contains(start) ? start + LogSegment.HEADER_SIZE : start;
+        long end = position + length;
+
+        // step2 wait until the flusher makes room in the buffer
+        for (int spins = 0; end - written > BUFFER_SIZE; spins++) {
+            LockSupport.unpark(flusher);
+            if ((spins & 0xff) == 0xff) Thread.yield();
+            else Thread.onSpinWait();
+        }
 
-        // step2 write log to file
-        ByteBuffer buf = ByteBuffer.wrap(log);
+        // step3 copy the log, then hand it to the flusher
+        copy(position, header);
+        copy(position + OF_DATA, data);
+        complete(start, end);
+        return position;
+    }
+
+    /**
+     * wait until the log at `position` and every log before it are forced
+     * to disk, the logs of every waiting thread are forced together
+     */
+    @Override
+    public void flush(long position) {
+        if (position < durableSize) return;
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            long target = Math.min(position + 1, reserved.get());
+            while (durableSize < target && !closed) {
+                flushPending = true;
+                LockSupport.unpark(flusher);
+                flushed.awaitUninterruptibly();
+            }
         } finally {
             lock.unlock();
         }
+    }
 
-        // step3 update check sum
-        updateChecksum(log);
+    // wait until every log written so far is forced to disk
+    public void flush() {
+        flush(reserved.get() - 1);
+    }
+
+    /**
+     * remove the segments holding only logs before `position`, the
+     * active segment is always kept
+     * return the number of segments removed
+     */
+    public int removeSegmentsBefore(long position) {
+        int removed = 0;
+        lock.lock();
+        try {
+            Iterator<LogSegment> iterator = segments.values().iterator();
+            while (iterator.hasNext()) {
+                LogSegment segment = iterator.next();
+                if (segment == active || segment.end() > position) break;
+                iterator.remove();
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+                if (!segment.file.delete()) Panic.panic(new IOException("cannot delete " + segment.file));
+                removed++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return removed;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
     }
 
     @Override
     public void rewind() {
-        position = 4;
+        position = segments.firstEntry().getValue().first();
+    }
+
+    // move the pointer of logger to a position returned by `log()`, `next()` starts from there
+    @Override
+    public void seek(long position) {
+        this.position = Math.max(position, segments.firstEntry().getValue().first());
+    }
+
+    // the position the next log will be reserved at
+    @Override
+    public long size() {
+        return reserved.get();
     }
 
     @Override
@@ -238,20 +553,49 @@ public class Logger extends AbstractLogger{
 
     @Override
     public void close() {
+        flush();
+        lock.lock();
+        try {
+            closed = true;
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        LockSupport.unpark(flusher);
         try {
-            fc.close();
-            raf.close();
+            if (flusher.isAlive()) flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        force(active);
+        durableSize = written;
+
+        try {
+            for (LogSegment segment : segments.values()) {
+                segment.close();
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
     }
 
+    // the number of fsyncs, a batch of logs takes one
+    public long getForceCount() {
+        return forces.sum();
+    }
+
     public long getPosition() {
         return this.position;
     }
 
+    // the position of the log returned by the last `next()`
+    public long getLastPosition() {
+        return this.lastPosition;
+    }
+
+    // the channel of the segment logs are written to
     public FileChannel getFc() {
-        return this.fc;
+        return this.active.fc;
     };
 
 }
@@ -1,5 +1,7 @@
 package com.northeastern.edu.simpledb.backend.dm.page;
 
+import java.nio.ByteBuffer;
+
 public abstract class AbstractPage {
 
     abstract void lock();
@@ -14,6 +16,6 @@ public abstract class AbstractPage {
 
     abstract int getPageNumber();
 
-    abstract byte[] getData();
+    abstract ByteBuffer getData();
 
 }
@@ -1,8 +1,10 @@
 package com.northeastern.edu.simpledb.backend.dm.page;
 
 import com.northeastern.edu.simpledb.backend.dm.cache.PageCache;
+import com.northeastern.edu.simpledb.backend.utils.Parser;
 import com.northeastern.edu.simpledb.backend.utils.RandomUtil;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -10,6 +12,7 @@ import java.util.Arrays;
  * when db start up, write random bytes from OF_VC to (OF_VC + LEN_VC - 1) byte
  * when db close, copy random bytes from (OF_VC + LEN_VC) to (OF_VC + 2 * LEN_VC - 1) byte
  * used to determine whether the database was shut down normally in the last time
+ * the position of the last checkpoint in log file is kept right after the two random bytes
  */
 public class L1Page {
 
@@ -17,6 +20,8 @@ public class L1Page {
 
     private final static int LEN_VC = 8;
 
+    private final static int OF_CHECKPOINT = OF_VC + 2 * LEN_VC;
+
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
         setVcOpen(raw);
@@ -24,8 +29,9 @@ public class L1Page {
     }
 
     public static void setVcOpen(Page page) {
-        page.setDirty(true);
-        setVcOpen(page.getData());
+        page.startModify();
+        Parser.put(page.getData(), OF_VC, RandomUtil.randomBytes(LEN_VC));
+        page.endModify();
     }
 
     private static void setVcOpen(byte[] raw) {
@@ -33,20 +39,32 @@ public class L1Page {
     }
 
     public static void setVcClose(Page page) {
-        page.setDirty(true);
-        setVcClose(page.getData());
+        page.startModify();
+        ByteBuffer raw = page.getData();
+        Parser.put(raw, OF_VC + LEN_VC, Parser.copyOfRange(raw, OF_VC, OF_VC + LEN_VC));
+        page.endModify();
     }
 
-    private static void setVcClose(byte[] raw) {
-        System.arraycopy(raw, OF_VC, raw, OF_VC + LEN_VC, LEN_VC);
+    public static boolean checkVc(Page pg) {
+        ByteBuffer raw = pg.getData();
+        return Arrays.equals(Parser.copyOfRange(raw, OF_VC, OF_VC + LEN_VC), Parser.copyOfRange(raw, OF_VC + LEN_VC, OF_VC + 2 * LEN_VC));
     }
 
-    public static boolean checkVc(Page pg) {
-        return checkVc(pg.getData());
+    // the random bytes written when the database was opened
+    public static byte[] getVc(Page page) {
+        return Parser.copyOfRange(page.getData(), OF_VC, OF_VC + LEN_VC);
+    }
+
+    // record the position of the last checkpoint in log file
+    public static void setCheckpoint(Page page, long position) {
+        page.startModify();
+        page.getData().putLong(OF_CHECKPOINT, position);
+        page.endModify();
     }
 
-    private static boolean checkVc(byte[] raw) {
-        return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC + LEN_VC), Arrays.copyOfRange(raw, OF_VC + LEN_VC, OF_VC + 2 * LEN_VC));
+    // 0 means no checkpoint has been taken
+    public static long getCheckpoint(Page page) {
+        return page.getData().getLong(OF_CHECKPOINT);
     }
 
 }
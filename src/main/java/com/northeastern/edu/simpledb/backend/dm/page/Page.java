@@ -2,19 +2,37 @@ package com.northeastern.edu.simpledb.backend.dm.page;
 
 import com.northeastern.edu.simpledb.backend.dm.cache.PageCache;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Page
+ * a page in the buffer pool, its bytes live in a frame owned by
+ * the page cache, the frame is shared by every thread using the
+ * page, so it is only accessed with absolute positions
+ */
 public class Page extends AbstractPage {
 
     private int pageNumber;
-    private byte[] data;
-    private boolean dirty;
+    private volatile ByteBuffer data;
+    private volatile boolean dirty;
     private Lock lock;
     private PageCache pageCache;
 
+    // shared by modifiers of the data, taken exclusively to write the page back
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
-    public Page(int pageNumber, byte[] data, PageCache pc) {
+    // the checkpoint epoch in which the page entered the dirty page table
+    private volatile long dirtyEpoch;
+
+    // the position of the last log describing the page (pageLSN), the log must be durable before the page is written
+    private final AtomicLong lsn = new AtomicLong();
+
+
+    public Page(int pageNumber, ByteBuffer data, PageCache pc) {
         this.pageNumber = pageNumber;
         this.data = data;
         this.pageCache = pc;
@@ -36,9 +54,42 @@ public class Page extends AbstractPage {
         pageCache.release(this);
     }
 
+    /**
+     * start modifying the data, the page is dirtied right away so it
+     * joins the dirty page table before the log of the modification
+     * is written. The page is not written back until `endModify()`,
+     * by then the log of the modification has to be written, so the
+     * page never reaches the disk half modified or ahead of its log
+     */
+    public void startModify() {
+        latch.readLock().lock();
+        setDirty(true);
+    }
+
+    public void endModify() {
+        latch.readLock().unlock();
+    }
+
+    /**
+     * keep modifiers away while the page is written back, if `wait` is
+     * false it returns false at once when a modification is in progress
+     */
+    public boolean latch(boolean wait) {
+        if (wait) {
+            latch.writeLock().lock();
+            return true;
+        }
+        return latch.writeLock().tryLock();
+    }
+
+    public void unlatch() {
+        latch.writeLock().unlock();
+    }
+
     @Override
     public void setDirty(boolean dirty) {
         this.dirty = dirty;
+        if (dirty && pageCache != null) pageCache.markDirty(this);
     }
 
     @Override
@@ -52,7 +103,31 @@ public class Page extends AbstractPage {
     }
 
     @Override
-    public byte[] getData() {
+    public ByteBuffer getData() {
         return data;
     }
+
+    // take the frame away from an evicted page, the caller holds the lock of the page
+    public ByteBuffer detachFrame() {
+        ByteBuffer frame = data;
+        data = null;
+        return frame;
+    }
+
+    public long getDirtyEpoch() {
+        return dirtyEpoch;
+    }
+
+    public void setDirtyEpoch(long dirtyEpoch) {
+        this.dirtyEpoch = dirtyEpoch;
+    }
+
+    public long getLsn() {
+        return lsn.get();
+    }
+
+    // logs of a page may be reserved by several threads in any order, the page keeps the latest one
+    public void setLsn(long lsn) {
+        this.lsn.accumulateAndGet(lsn, Math::max);
+    }
 }
@@ -3,7 +3,7 @@ package com.northeastern.edu.simpledb.backend.dm.page;
 import com.northeastern.edu.simpledb.backend.dm.cache.PageCache;
 import com.northeastern.edu.simpledb.backend.utils.Parser;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * Secondary Page
@@ -26,21 +26,29 @@ public class SecondaryPage {
 
     // insert raw into page, return insertion position
     public static short insert(Page page, byte[] raw) {
-        page.setDirty(true);
-        // get free space offset
-        short offset = getFSO(page.getData());
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
-        // update free space offset
-        setFSO(page.getData(), (short)(offset + raw.length));
-        return offset;
+        page.startModify();
+        try {
+            // get free space offset
+            short offset = getFSO(page.getData());
+            Parser.put(page.getData(), offset, raw);
+            // update free space offset
+            setFSO(page.getData(), (short) (offset + raw.length));
+            return offset;
+        } finally {
+            page.endModify();
+        }
     }
 
     private static void setFSO(byte[] raw, short ofData) {
         System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, OF_FREE, OF_DATA));
+    private static void setFSO(ByteBuffer raw, short ofData) {
+        raw.putShort(OF_FREE, ofData);
+    }
+
+    private static short getFSO(ByteBuffer raw) {
+        return raw.getShort(OF_FREE);
     }
 
     public static short getFSO(Page page) {
@@ -54,17 +62,19 @@ public class SecondaryPage {
 
     // recover insert statement from log file, update FSO of page if needed
     public static void recoverInsert(Page page, byte[] raw, short offset) {
-        page.setDirty(true);
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
+        page.startModify();
+        Parser.put(page.getData(), offset, raw);
 
         short rawFSO = getFSO(page.getData());
         if (rawFSO < offset + raw.length) setFSO(page.getData(), (short) (offset + raw.length));
+        page.endModify();
     }
 
     // recover update statement from log file
     public static void recoverUpdate(Page page, byte[] raw, short offset) {
-        page.setDirty(true);
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
+        page.startModify();
+        Parser.put(page.getData(), offset, raw);
+        page.endModify();
     }
 
 }
@@ -0,0 +1,113 @@
+package com.northeastern.edu.simpledb.backend.dm.pageIndex;
+
+import com.northeastern.edu.simpledb.backend.utils.Panic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Free Space Map
+ * the free space of every page saved when the database is closed
+ * normally, so the page index can be filled without reading pages
+ *
+ * format: [VC: 8 bytes][PageNumber: 4 bytes][FreeSpace2: 2 bytes]...[FreeSpaceN: 2 bytes][Checksum: 4 bytes]
+ * VC is the random bytes of L1 page when the map is saved, the map
+ * is trusted only if the L1 page still holds them and the number of
+ * pages is the same, a crash or a later open changes the random bytes
+ */
+public class FreeSpaceMap {
+
+    // standard suffix of free space map file
+    public static final String FSM_SUFFIX = ".fsm";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int LEN_VC = 8;
+
+    private static final int OF_PAGE_NUMBER = LEN_VC;
+
+    private static final int OF_FREE_SPACE = OF_PAGE_NUMBER + 4;
+
+    private static final int LEN_CHECKSUM = 4;
+
+    private final File file;
+
+    public FreeSpaceMap(String path) {
+        this.file = new File(path + FSM_SUFFIX);
+    }
+
+    /**
+     * load the free space of pages 2 to `pageNumber`, indexed by page number
+     * return null if the map is missing, broken or not saved for `vc` and `pageNumber`
+     */
+    public short[] load(byte[] vc, int pageNumber) {
+        if (!file.exists() || file.length() != size(pageNumber)) return null;
+
+        ByteBuffer buf;
+        try {
+            buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        } catch (IOException e) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.capacity() - LEN_CHECKSUM);
+        if ((int) crc.getValue() != buf.getInt(buf.capacity() - LEN_CHECKSUM)) return null;
+
+        byte[] savedVc = new byte[LEN_VC];
+        buf.get(savedVc);
+        if (!Arrays.equals(vc, savedVc) || buf.getInt(OF_PAGE_NUMBER) != pageNumber) return null;
+
+        short[] freeSpaces = new short[pageNumber + 1];
+        buf.position(OF_FREE_SPACE);
+        for (int i = 2; i <= pageNumber; i++) {
+            freeSpaces[i] = buf.getShort();
+        }
+        return freeSpaces;
+    }
+
+    /**
+     * save the free space of pages 2 to freeSpaces.length - 1, the map
+     * is written aside and renamed, so a crash leaves the old map or the new one
+     */
+    public void save(byte[] vc, short[] freeSpaces) {
+        int pageNumber = freeSpaces.length - 1;
+        ByteBuffer buf = ByteBuffer.allocate(size(pageNumber));
+        buf.put(vc, 0, LEN_VC);
+        buf.putInt(pageNumber);
+        for (int i = 2; i <= pageNumber; i++) {
+            buf.putShort(freeSpaces[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        try (FileChannel fc = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) {
+                fc.write(buf);
+            }
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static int size(int pageNumber) {
+        return OF_FREE_SPACE + Math.max(0, pageNumber - 1) * Short.BYTES + LEN_CHECKSUM;
+    }
+}
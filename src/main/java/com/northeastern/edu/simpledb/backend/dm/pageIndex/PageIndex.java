@@ -2,10 +2,7 @@ package com.northeastern.edu.simpledb.backend.dm.pageIndex;
 
 import com.northeastern.edu.simpledb.backend.dm.cache.PageCache;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedDeque;
 
 /**
  * Page Index
@@ -13,55 +10,70 @@ import java.util.concurrent.locks.ReentrantLock;
  * used to quickly find a page with suitable space when the
  * upper module performs an insertion operation without checking
  * the information of each page from the disk or cache
+ *
+ * every bucket is a lock free deque, a selected page is taken out
+ * of its bucket until the insertion puts it back, so concurrent
+ * insertions always pick distinct pages
  */
 public class PageIndex {
 
     private static final int INTERVALS_NO = 40;
     private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
 
-    private Lock lock;
-
     /**
-     * entry in Map
-     * key: the number of free slot : Integer
-     * value: all of PageInfo have the number of free slot : List
+     * bucket i holds the pages having i free slots
      */
-    private List<PageInfo>[] lists; 
+    private final ConcurrentLinkedDeque<PageInfo>[] buckets;
 
-    @SuppressWarnings("unchecked")
+    @SuppressWarnings({"unchecked", "rawtypes"})
     public PageIndex() {
-        this.lock = new ReentrantLock();
-        this.lists = new List[INTERVALS_NO + 1];
+        this.buckets = new ConcurrentLinkedDeque[INTERVALS_NO + 1];
         for (int i = 0; i < INTERVALS_NO + 1; i++) {
-            lists[i] = new ArrayList<>();
+            buckets[i] = new ConcurrentLinkedDeque<>();
         }
     }
 
 
     public void add(int pageNumber, int freeSpace) {
         int number = freeSpace / THRESHOLD; // how many free slot this page has?
-        lists[number].add(new PageInfo(pageNumber, freeSpace));
+        buckets[number].addLast(new PageInfo(pageNumber, freeSpace));
     }
 
     /**
      * calculating how many free slot needed, then
      * accessing the next one, having more slot and
      * ensuring the data won't across two pages.
+     * the smallest bucket fitting the data is taken first, so
+     * pages with more free space are kept for larger data
      */
     public PageInfo select(int spaceSize) {
         int number = spaceSize / THRESHOLD; // how many free slot need?
         if (number < INTERVALS_NO) number++; // rounded up
 
-        // iterate over lists finding the first page doesn't acquire by other thread
-        while (number <= INTERVALS_NO) {
-            if (lists[number].size() == 0) {
-                number++;
-                continue;
-            }
-            if (lists[number].size() > 0) return lists[number].remove(0);
+        for (; number < INTERVALS_NO; number++) {
+            PageInfo pageInfo = buckets[number].pollFirst();
+            if (pageInfo != null) return pageInfo;
+        }
+
+        // the last bucket isn't rounded up, its pages may have less free space than the data
+        for (PageInfo pageInfo : buckets[INTERVALS_NO]) {
+            if (pageInfo.freeSpace >= spaceSize && buckets[INTERVALS_NO].removeFirstOccurrence(pageInfo)) return pageInfo;
         }
         return null;
     }
 
+    /**
+     * the free space of every page in the index, indexed by page number,
+     * pages selected by an insertion in progress are missing
+     */
+    public short[] snapshot(int pageNumber) {
+        short[] freeSpaces = new short[pageNumber + 1];
+        for (ConcurrentLinkedDeque<PageInfo> bucket : buckets) {
+            for (PageInfo pageInfo : bucket) {
+                if (pageInfo.pageNumber <= pageNumber) freeSpaces[pageInfo.pageNumber] = (short) pageInfo.freeSpace;
+            }
+        }
+        return freeSpaces;
+    }
 
 }
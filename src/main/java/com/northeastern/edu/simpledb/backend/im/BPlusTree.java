@@ -1,35 +1,65 @@
 package com.northeastern.edu.simpledb.backend.im;
 
+import com.google.common.primitives.Bytes;
 import com.northeastern.edu.simpledb.backend.common.SubArray;
 import com.northeastern.edu.simpledb.backend.dm.DataManger;
 import com.northeastern.edu.simpledb.backend.dm.dataItem.DataItem;
 import com.northeastern.edu.simpledb.backend.utils.Parser;
+import com.northeastern.edu.simpledb.common.Error;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.northeastern.edu.simpledb.backend.tm.TransactionManager.SUPER_XID;
 
+/**
+ * B+ Tree
+ * the boot data item points to the root: [RootUid: 8bytes][Balance: 2bytes]
+ * a tree created before the balance was configurable has `[RootUid]`
+ * only, its nodes have a balance of 3
+ */
 public class BPlusTree {
 
     private static final int UID_SIZE = 8;
+    private static final int BALANCE_SIZE = 2;
+    // the uids a cursor reads at a time
+    private static final int DEFAULT_BATCH_SIZE = 1024;
     DataManger dm;
     long bootUid;
     DataItem bootDataItem;
     Lock bootLock;
+    // the balance of the nodes of this tree, a node holds up to 2 * balance keys
+    int balance;
 
 
+    public static long create(DataManger dm) throws Exception {
+        return create(dm, Node.DEFAULT_BALANCE * 2);
+    }
+
     /**
      *  storing uid of insertion of nil root raw, aka rootUid
      *  return the uid of insertion of uid of insertion of nil root raw, aka bootUid
+     *  a node of the tree holds up to `fanout` keys
      */
-    public static long create(DataManger dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw(); // get nil root raw: [1,0,0,0,0,0,0,0...]
+    public static long create(DataManger dm, int fanout) throws Exception {
+        if (!isValidFanout(fanout)) throw Error.InvalidFanoutException;
+        int balance = fanout / 2;
+        byte[] rawRoot = Node.newNilRootRaw(balance); // get nil root raw: [1,0,0,0,0,0,0,0...]
         long rootUid = dm.insert(SUPER_XID, rawRoot); // store nil root raw, and return uid of insertion of nil root raw
-        return dm.insert(SUPER_XID, Parser.long2Byte(rootUid)); // store uid, return uid of insertion of uid of nil root raw
+        byte[] boot = Bytes.concat(Parser.long2Byte(rootUid), Parser.short2Byte((short) balance));
+        return dm.insert(SUPER_XID, boot); // store uid, return uid of insertion of uid of nil root raw
+    }
+
+    // the largest fanout of a node fitting in a page
+    public static int maxFanout() {
+        return Node.MAX_BALANCE * 2;
+    }
+
+    // a fanout is even, so a node splits into halves, and between the smallest node and a page
+    public static boolean isValidFanout(int fanout) {
+        return fanout % 2 == 0 && fanout >= Node.MIN_BALANCE * 2 && fanout <= maxFanout();
     }
 
     // loading rootUid by bootUid
@@ -41,15 +71,19 @@ public class BPlusTree {
         bPlusTree.dm = dm;
         bPlusTree.bootUid = bootUid;
         bPlusTree.bootLock = new ReentrantLock();
+        SubArray boot = bootDataItem.data();
+        bPlusTree.balance = boot.end - boot.start < UID_SIZE + BALANCE_SIZE
+                ? Node.LEGACY_BALANCE
+                : boot.raw.getShort(boot.start + UID_SIZE);
         return bPlusTree;
     }
 
     // retrieving rootUid from the data of bootDataItem
-    private long rootUid() {
+    long rootUid() {
         bootLock.lock();
         try {
             SubArray subArray = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(subArray.raw, subArray.start, subArray.start + UID_SIZE));
+            return subArray.raw.getLong(subArray.start);
         } finally {
             bootLock.unlock();
         }
@@ -59,62 +93,96 @@ public class BPlusTree {
      *      [newRootUid]
      *        /     \
      *   [rootUid] [uid]
+     * the new root is installed only if `left` is still the root, a
+     * node splitting at the top of the path of an insertion isn't the
+     * root any more if another insertion split the root meanwhile
      */
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
-        byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
-        long newRootUid = dm.insert(SUPER_XID, rootRaw);
-        bootDataItem.before();
-        SubArray diRaw = bootDataItem.data();
-        System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, UID_SIZE);
-        bootDataItem.after(SUPER_XID);
+    private boolean updateRootUid(long left, long right, long rightKey) throws Exception {
+        bootLock.lock();
+        try {
+            if (rootUid() != left) return false;
+            byte[] rootRaw = Node.newRootRaw(left, right, rightKey, balance);
+            long newRootUid = dm.insert(SUPER_XID, rootRaw);
+            bootDataItem.before();
+            SubArray diRaw = bootDataItem.data();
+            diRaw.raw.putLong(diRaw.start, newRootUid);
+            bootDataItem.after(SUPER_XID);
+            return true;
+        } finally {
+            bootLock.unlock();
+        }
     }
 
+    /**
+     * insert uid and key into B+ Tree
+     * the path from the root to the leaf is remembered on the way down,
+     * and a split inserts the new node into the node above it on the path,
+     * moving right if that node split meanwhile. only the node being
+     * modified is locked, readers never wait for an insertion
+     */
     public void insert(long key, long uid) throws Exception {
         long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if (res.newNode != 0) updateRootUid(rootUid, res.newNode, res.newKey);
+        List<Long> path = descend(rootUid, key);
+        // the level of the node to insert into, the leaf is at level 1
+        int level = 1;
+        long son = uid;
+        long sonKey = key;
+        for (;;) {
+            InsertRes res = insertAndSplit(path.get(path.size() - level), son, sonKey);
+            if (res.newNode == 0) return;
+            son = res.newNode;
+            sonKey = res.newKey;
+            level++;
+            if (level <= path.size()) continue;
+
+            // the top of the path split
+            if (res.node == rootUid && updateRootUid(rootUid, son, sonKey)) return;
+
+            // another insertion split the root or is about to install the new root,
+            // find the nodes above in the new tree
+            long newRootUid;
+            while ((newRootUid = rootUid()) == rootUid) {
+                Thread.yield();
+            }
+            rootUid = newRootUid;
+            path = descend(rootUid, sonKey);
+        }
     }
 
     class InsertRes {
+        // the node the uid is inserted into
+        long node;
         long newNode;
         long newKey;
     }
 
-    /**
-     * insert uid and key into B+ Tree based on nodeUid
-     */
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
-
-        // in two situations, insertAndSplit will be invoked
-        InsertRes res = null;
-        if (isLeaf) {
-            // 1. insert to a leaf node
-            res = insertAndSplit(nodeUid, uid, key);
-        } else {
-            long next = searchNext(nodeUid, key); // find the first son has larger key than input key
-            InsertRes insertRes = insert(next, uid, key);
-            if (insertRes.newNode != 0) {
-                // 2. after splitting, a new node created, and this need to be inserted into b+tree based on the current node
-                res = insertAndSplit(nodeUid, insertRes.newNode, insertRes.newKey);
-            } else {
-                res = new InsertRes();
-            }
+    // the nodes from `nodeUid` down to the leaf which `key` belongs to
+    private List<Long> descend(long nodeUid, long key) throws Exception {
+        List<Long> path = new ArrayList<>();
+        for (;;) {
+            path.add(nodeUid);
+            Node node = Node.loadNode(this, nodeUid);
+            boolean isLeaf = node.isLeaf();
+            node.release();
+            if (isLeaf) return path;
+            nodeUid = searchNext(nodeUid, key); // find the first son has larger key than input key
         }
-        return res;
     }
 
     private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
         for (;;) {
             Node node = Node.loadNode(this, nodeUid);
-            Node.InsertAndSplitRes insertAndSplitRes = node.insertAndSplit(uid, key);
+            Node.InsertAndSplitRes insertAndSplitRes;
+            try {
+                insertAndSplitRes = node.insertAndSplit(uid, key);
+            } finally {
+                node.release();
+            }
             if (insertAndSplitRes.siblingUid != 0) {
                 nodeUid = insertAndSplitRes.siblingUid;
             } else {
                 InsertRes insertRes = new InsertRes();
+                insertRes.node = nodeUid;
                 insertRes.newKey = insertAndSplitRes.newKey;
                 insertRes.newNode = insertAndSplitRes.newSon;
                 return insertRes;
@@ -155,20 +223,96 @@ public class BPlusTree {
     }
 
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();
-        long leftUid = searchLeaf(rootUid, leftKey);
         List<Long> uids = new ArrayList<>();
-        for (;;) { // searching all the siblings starting from the given leaf node and collecting all uids
-            Node leaf = Node.loadNode(this, leftUid);
-            Node.LeafSearchRangeRes res = leaf.leafSearchRangeRes(leftKey, rightKey);
-            leaf.release();
-            uids.addAll(res.uids);
-            if (res.siblingUid == 0) break;
-            else leftUid = res.siblingUid;
+        Cursor cursor = cursor(leftKey, rightKey);
+        for (int n = cursor.next(); n > 0; n = cursor.next()) {
+            for (int i = 0; i < n; i++) {
+                uids.add(cursor.batch[i]);
+            }
         }
         return uids;
     }
 
+    public Cursor cursor(long leftKey, long rightKey) throws Exception {
+        return cursor(leftKey, rightKey, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * a cursor over the uids of the keys in [leftKey, rightKey], the
+     * uids are read a leaf at a time into a batch of `batchSize` uids at
+     * least, a scan stopping early reads no further leaves
+     */
+    public Cursor cursor(long leftKey, long rightKey, int batchSize) throws Exception {
+        // descend like searchLeaf() but remember the parent of the leaf
+        long leftUid = rootUid();
+        long parentUid = 0;
+        for (;;) {
+            Node node = Node.loadNode(this, leftUid);
+            boolean isLeaf = node.isLeaf();
+            node.release();
+            if (isLeaf) break;
+            parentUid = leftUid;
+            leftUid = searchNext(leftUid, leftKey);
+        }
+        if (leftKey != rightKey && parentUid != 0) prefetchLeaves(parentUid, leftKey, rightKey);
+
+        Cursor cursor = new Cursor();
+        cursor.leftKey = leftKey;
+        cursor.rightKey = rightKey;
+        cursor.batch = new long[Math.max(batchSize, balance * 2 + 2)];
+        cursor.nextLeaf = leftUid;
+        return cursor;
+    }
+
+    /**
+     * Cursor
+     * usage: `for (int n = cursor.next(); n > 0; n = cursor.next())` reads `cursor.batch()[0..n)`
+     * the leaves are visited along the sibling chain, keys inserted into
+     * the leaves not visited yet are seen
+     */
+    public class Cursor {
+
+        long leftKey;
+        long rightKey;
+        long[] batch;
+        // the number of uids in the batch
+        int size;
+        // the leaf to read next, 0 at the end of the range
+        long nextLeaf;
+
+        // the buffer filled by `next()`, it is reused by every call
+        public long[] batch() {
+            return batch;
+        }
+
+        // read the next uids into the batch, return the number of them, 0 at the end
+        public int next() throws Exception {
+            size = 0;
+            while (nextLeaf != 0) {
+                Node leaf = Node.loadNode(BPlusTree.this, nextLeaf);
+                try {
+                    // a leaf is read as a whole, the batch goes out if it might not fit
+                    if (size > 0 && batch.length - size < leaf.capacity()) break;
+                    leaf.scanLeaf(leftKey, rightKey, this);
+                } finally {
+                    leaf.release();
+                }
+                if (size == batch.length) break;
+            }
+            return size;
+        }
+    }
+
+    // a range scan walks the leaf chain, let the pages of the next leaves be read ahead
+    private void prefetchLeaves(long parentUid, long leftKey, long rightKey) throws Exception {
+        Node parent = Node.loadNode(this, parentUid);
+        List<Long> leaves = parent.sonsInRange(leftKey, rightKey);
+        parent.release();
+        for (long leafUid : leaves) {
+            dm.prefetch(leafUid);
+        }
+    }
+
     public void close() {
         bootDataItem.release();
     }
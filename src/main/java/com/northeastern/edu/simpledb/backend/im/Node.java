@@ -2,10 +2,10 @@ package com.northeastern.edu.simpledb.backend.im;
 
 import com.northeastern.edu.simpledb.backend.common.SubArray;
 import com.northeastern.edu.simpledb.backend.dm.dataItem.DataItem;
+import com.northeastern.edu.simpledb.backend.dm.page.SecondaryPage;
 import com.northeastern.edu.simpledb.backend.utils.Parser;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static com.northeastern.edu.simpledb.backend.tm.TransactionManager.SUPER_XID;
@@ -14,6 +14,8 @@ public class Node {
 
     // Node will be stored as a DataItem
     // [Valid][Size][LeafFlag][NumberOfKeys][SiblingUid][Son0][Key0][Son1][Key1]...[SonN][KeyN]
+    // a node has room for 2 * balance + 2 sons, and is split when it holds 2 * balance keys,
+    // the balance of a node is derived from its length, so nodes of every size can be read
 
     private static final int SON_SIZE = 8;
 
@@ -30,9 +32,26 @@ public class Node {
     private static final int NUMBER_OF_KEYS_OFFSET = IS_LEAF_OFFSET + LEAF_FLAG_SIZE;
     private static final int SIBLING_OFFSET = NUMBER_OF_KEYS_OFFSET + NUMBER_OF_KEYS_SIZE;
     private static final int NODE_HEADER_SIZE = SIBLING_OFFSET + SIBLING_UID_SIZE;
-    private static final int BALANCE_NUMBER = 3;
 
-    private static final int NODE_SIZE = NODE_HEADER_SIZE + (SON_SIZE + KEY_SIZE) * (BALANCE_NUMBER * 2 + 2);
+    // the length of the header of a data item
+    private static final int DATA_ITEM_HEADER_SIZE = 3;
+
+    // the balance of the nodes of the trees created before it was configurable
+    static final int LEGACY_BALANCE = 3;
+
+    static final int MIN_BALANCE = 2;
+
+    // the largest node fits in a page
+    static final int MAX_BALANCE = balanceFor(SecondaryPage.MAX_FREE_SPACE);
+
+    // two nodes fit in a page by default
+    static final int DEFAULT_BALANCE = balanceFor(SecondaryPage.MAX_FREE_SPACE / 2);
+
+    // the optimistic reads of a node before reading it under the read lock
+    private static final int OPTIMISTIC_ATTEMPTS = 8;
+
+    // the stamp of a read under the read lock, versions are never negative
+    private static final long LOCKED = -1;
 
     BPlusTree tree;
     DataItem dataItem;
@@ -40,64 +59,96 @@ public class Node {
     long uid;
 
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
-        raw.raw[raw.start + IS_LEAF_OFFSET] = isLeaf ? (byte) 1 : (byte) 0;
+        raw.raw.put(raw.start + IS_LEAF_OFFSET, isLeaf ? (byte) 1 : (byte) 0);
     }
 
     static boolean getRawIfLeaf(SubArray raw) {
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte) 1;
+        return raw.raw.get(raw.start + IS_LEAF_OFFSET) == (byte) 1;
     }
 
     static void setRawNoKeys(SubArray raw, int numberOfKeys) {
-        System.arraycopy(Parser.short2Byte((short) numberOfKeys), 0, raw.raw, raw.start + NUMBER_OF_KEYS_OFFSET, NUMBER_OF_KEYS_SIZE);
+        raw.raw.putShort(raw.start + NUMBER_OF_KEYS_OFFSET, (short) numberOfKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NUMBER_OF_KEYS_OFFSET, raw.start + NUMBER_OF_KEYS_OFFSET + NUMBER_OF_KEYS_SIZE));
+        return (int) raw.raw.getShort(raw.start + NUMBER_OF_KEYS_OFFSET);
     }
 
     static void setRawSibling(SubArray raw, long numberOfSiblings) {
-        System.arraycopy(Parser.long2Byte(numberOfSiblings), 0, raw.raw, raw.start + SIBLING_OFFSET, SIBLING_UID_SIZE);
+        raw.raw.putLong(raw.start + SIBLING_OFFSET, numberOfSiblings);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + SIBLING_UID_SIZE));
+        return raw.raw.getLong(raw.start + SIBLING_OFFSET);
     }
 
     static void setRawKthSon(SubArray raw, long uid, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (SON_SIZE + KEY_SIZE);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, SON_SIZE);
+        raw.raw.putLong(offset, uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (SON_SIZE + KEY_SIZE);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + SON_SIZE));
+        return raw.raw.getLong(offset);
     }
 
     static void setRawKthKey(SubArray raw, long key, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (SON_SIZE + KEY_SIZE) + SON_SIZE;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, KEY_SIZE);
+        raw.raw.putLong(offset, key);
     }
 
     static long getRawKthKey(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (SON_SIZE + KEY_SIZE) + SON_SIZE;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + KEY_SIZE));
+        return raw.raw.getLong(offset);
     }
 
+    // the largest balance of a node whose data item fits in `space` bytes
+    private static int balanceFor(int space) {
+        return ((space - DATA_ITEM_HEADER_SIZE - NODE_HEADER_SIZE) / (SON_SIZE + KEY_SIZE) - 2) / 2;
+    }
+
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (SON_SIZE + KEY_SIZE) * (balance * 2 + 2);
+    }
+
+    static int getRawBalance(SubArray raw) {
+        return ((raw.end - raw.start - NODE_HEADER_SIZE) / (SON_SIZE + KEY_SIZE) - 2) / 2;
+    }
+
+    /**
+     * binary search over the sorted keys of the node, the keys are read
+     * in place from the buffer of the page
+     * return the first kth whose key is not smaller than `key`, or
+     * larger than `key` if `strict`, `noKeys` if there is none
+     */
+    static int searchRawKey(SubArray raw, int noKeys, long key, boolean strict) {
+        int low = 0;
+        int high = noKeys;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            long ik = getRawKthKey(raw, mid);
+            if (ik < key || (strict && ik == key)) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // move the sons and keys from kth on one place right, a long at a time
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (SON_SIZE + KEY_SIZE);
-        int end = raw.start + NODE_SIZE - 1;
-        for (int i = end; i >= begin; i--) {
-            raw.raw[i] = raw.raw[i - (SON_SIZE + KEY_SIZE)];
+        for (int i = raw.end - Long.BYTES; i >= begin; i -= Long.BYTES) {
+            raw.raw.putLong(i, raw.raw.getLong(i - (SON_SIZE + KEY_SIZE)));
         }
     }
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
         int offset = from.start + NODE_HEADER_SIZE + kth * (SON_SIZE + KEY_SIZE);
-        System.arraycopy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
+        Parser.copy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
     }
 
-    static byte[] newRootRaw(long left, long right, long key) {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newRootRaw(long left, long right, long key, int balance) {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
@@ -107,16 +158,17 @@ public class Node {
         setRawKthSon(raw, right, 1);
         setRawKthKey(raw, Long.MAX_VALUE, 1);
 
-        return raw.raw;
+        return raw.raw.array();
     }
 
-    static byte[] newNilRootRaw() {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newNilRootRaw(int balance) {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
         setRawSibling(raw, 0);
 
-        return raw.raw;
+        return raw.raw.array();
     }
 
     static Node loadNode(BPlusTree bTree, long uid) throws Exception {
@@ -134,12 +186,41 @@ public class Node {
         dataItem.release();
     }
 
-    public boolean isLeaf() {
+    /**
+     * readers don't take the read lock of the node, they read it and
+     * validate the version of the data item afterwards, and read again
+     * if a writer modified it meanwhile. after OPTIMISTIC_ATTEMPTS failed
+     * reads the read lock is taken, so a reader can't starve
+     */
+    private long startRead(int attempt) {
+        if (attempt < OPTIMISTIC_ATTEMPTS) {
+            if (attempt > 0) Thread.onSpinWait();
+            return dataItem.startRead();
+        }
         dataItem.rLock();
-        try {
-            return getRawIfLeaf(raw);
-        } finally {
+        return LOCKED;
+    }
+
+    // whether what was read since `startRead()` is valid, the read lock is released if it was taken
+    private boolean endRead(long stamp) {
+        if (stamp == LOCKED) {
             dataItem.rUnLock();
+            return true;
+        }
+        return dataItem.validate(stamp);
+    }
+
+    // the number of keys, kept in the node when a torn read gives a wrong one
+    private int noKeys() {
+        int noKeys = getRawNoKeys(raw);
+        return Math.max(0, Math.min(noKeys, getRawBalance(raw) * 2 + 2));
+    }
+
+    public boolean isLeaf() {
+        for (int attempt = 0; ; attempt++) {
+            long stamp = startRead(attempt);
+            boolean isLeaf = getRawIfLeaf(raw);
+            if (endRead(stamp)) return isLeaf;
         }
     }
 
@@ -150,61 +231,64 @@ public class Node {
     }
 
     public SearchNextRes searchNext(long key) {
-        dataItem.rLock();
-        try {
-            SearchNextRes res = new SearchNextRes();
-            int noKeys = getRawNoKeys(raw);
-            for (int i = 0; i < noKeys; i++) {
-                long ik = getRawKthKey(raw, i);
-                if (key < ik) {
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
-                }
+        SearchNextRes res = new SearchNextRes();
+        for (int attempt = 0; ; attempt++) {
+            long stamp = startRead(attempt);
+            int noKeys = noKeys();
+            int kth = searchRawKey(raw, noKeys, key, true); // the first key larger than key
+            if (kth < noKeys) {
+                res.uid = getRawKthSon(raw, kth);
+                res.siblingUid = 0;
+            } else {
+                res.uid = 0;
+                res.siblingUid = getRawSibling(raw);
             }
-            res.uid = 0;
-            res.siblingUid = getRawSibling(raw);
-            return res;
-        } finally {
-            dataItem.rUnLock();
+            if (endRead(stamp)) return res;
         }
     }
 
-    class LeafSearchRangeRes {
-        List<Long> uids;
-        long siblingUid;
+    /**
+     * the sons of an internal node holding keys in [leftKey, rightKey],
+     * son i holds the keys smaller than key i and not smaller than key i-1
+     */
+    public List<Long> sonsInRange(long leftKey, long rightKey) {
+        for (int attempt = 0; ; attempt++) {
+            long stamp = startRead(attempt);
+            List<Long> sons = new ArrayList<>();
+            int noKeys = noKeys();
+            for (int i = searchRawKey(raw, noKeys, leftKey, true); i < noKeys; i++) {
+                if (i > 0 && getRawKthKey(raw, i - 1) > rightKey) break;
+                sons.add(getRawKthSon(raw, i));
+            }
+            if (endRead(stamp)) return sons;
+        }
     }
 
-    public LeafSearchRangeRes leafSearchRangeRes(long leftKey, long rightKey) {
-        dataItem.rLock();
-        try {
-            int noKeys = getRawNoKeys(raw);
-            int kth = 0;
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik >= leftKey) {
-                    break;
-                }
+    // the most uids a leaf holds
+    int capacity() {
+        return getRawBalance(raw) * 2 + 2;
+    }
+
+    /**
+     * append the uids of the keys in [leftKey, rightKey] to the batch of
+     * the cursor, and point the cursor at the sibling if the range goes on
+     * there, the batch must have room for `capacity()` uids. the uids and the
+     * sibling are read together, so a split after it doesn't make the
+     * cursor visit the moved keys again
+     */
+    void scanLeaf(long leftKey, long rightKey, BPlusTree.Cursor cursor) {
+        int start = cursor.size;
+        for (int attempt = 0; ; attempt++) {
+            long stamp = startRead(attempt);
+            cursor.size = start;
+            int noKeys = noKeys();
+            int kth = searchRawKey(raw, noKeys, leftKey, false); // the first key not smaller than leftKey
+            while (kth < noKeys && getRawKthKey(raw, kth) <= rightKey) {
+                cursor.batch[cursor.size++] = getRawKthSon(raw, kth);
                 kth++;
             }
-            List<Long> uids = new ArrayList<>();
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
-                    kth ++;
-                } else break;
-            }
-            long siblingUid = 0;
-            if (kth == noKeys) {
-                siblingUid = getRawSibling(raw);
-            }
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
-            return res;
-        } finally {
-            dataItem.rUnLock();
+            cursor.nextLeaf = kth == noKeys ? getRawSibling(raw) : 0;
+            if (endRead(stamp)) return;
         }
     }
 
@@ -245,15 +329,7 @@ public class Node {
 
     private boolean insert(long uid, long key) {
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        while(kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if(ik < key) {
-                kth ++;
-            } else {
-                break;
-            }
-        }
+        int kth = searchRawKey(raw, noKeys, key, false);
         if(kth == noKeys && getRawSibling(raw) != 0) return false;
 
         if(getRawIfLeaf(raw)) {
@@ -273,7 +349,7 @@ public class Node {
     }
 
     private boolean needSplit() {
-        return BALANCE_NUMBER * 2 == getRawNoKeys(raw);
+        return getRawBalance(raw) * 2 == getRawNoKeys(raw);
     }
 
     class SplitRes {
@@ -282,14 +358,16 @@ public class Node {
     }
 
     private SplitRes split() throws Exception{
-        System.out.println("split...");
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        // the new node is as large as this one
+        int balance = getRawBalance(raw);
+        int size = raw.end - raw.start;
+        SubArray nodeRaw = new SubArray(new byte[size], 0, size);
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        setRawNoKeys(nodeRaw, balance);
         setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
-        long son = tree.dm.insert(SUPER_XID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        copyRawFromKth(raw, nodeRaw, balance);
+        long son = tree.dm.insert(SUPER_XID, nodeRaw.raw.array());
+        setRawNoKeys(raw, balance);
         setRawSibling(raw, son);
 
         SplitRes splitRes = new SplitRes();
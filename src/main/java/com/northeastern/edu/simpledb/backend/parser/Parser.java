@@ -1,5 +1,6 @@
 package com.northeastern.edu.simpledb.backend.parser;
 
+import com.northeastern.edu.simpledb.backend.im.BPlusTree;
 import com.northeastern.edu.simpledb.backend.parser.statement.*;
 import com.northeastern.edu.simpledb.common.Error;
 
@@ -324,6 +325,20 @@ public class Parser {
         create.index = indexes.toArray(new String[indexes.size()]);
         tokenizer.pop();
 
+        // optional: fanout [number], checked here so no index of the table is created with a bad one
+        if("fanout".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            try {
+                create.fanout = Integer.parseInt(tokenizer.peek());
+            } catch (NumberFormatException e) {
+                throw Error.InvalidCommandException;
+            }
+            if(!BPlusTree.isValidFanout(create.fanout)) {
+                throw Error.InvalidFanoutException;
+            }
+            tokenizer.pop();
+        }
+
         if(!"".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
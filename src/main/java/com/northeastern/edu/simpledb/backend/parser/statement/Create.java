@@ -5,4 +5,6 @@ public class Create {
     public String[] fieldName;
     public String[] fieldType;
     public String[] index;
+    // the number of keys a node of the indexes holds, 0 means the default
+    public int fanout;
 }
@@ -47,11 +47,16 @@ public class Field {
     }
 
     public static Field createField(Table table, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
+        return createField(table, xid, fieldName, fieldType, indexed, 0);
+    }
+
+    // a node of the index holds up to `fanout` keys, 0 means the default
+    public static Field createField(Table table, long xid, String fieldName, String fieldType, boolean indexed, int fanout) throws Exception {
         typeCheck(fieldType);
         Field field = new Field(table, fieldName, fieldType, 0);
         // if this field is an index, create a B+ Tree for it
         if (indexed) {
-            long index = BPlusTree.create(table.tbm.dm);
+            long index = fanout == 0 ? BPlusTree.create(table.tbm.dm) : BPlusTree.create(table.tbm.dm, fanout);
             BPlusTree bpt = BPlusTree.load(index, table.tbm.dm);
             field.index = index;
             field.bPlusTree = bpt;
@@ -144,7 +149,7 @@ public class Field {
         index = Parser.parseLong(Arrays.copyOfRange(raw, position, position + Long.BYTES));
         if (index != 0) {
             try {
-                BPlusTree.load(index, table.tbm.dm);
+                bPlusTree = BPlusTree.load(index, table.tbm.dm);
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -185,6 +190,10 @@ public class Field {
         return bPlusTree.searchRange(l, r);
     }
 
+    public BPlusTree.Cursor cursor(long l, long r) throws Exception {
+        return bPlusTree.cursor(l, r);
+    }
+
     public String printValue(Object v) {
         String str = null;
         switch(fieldType) {
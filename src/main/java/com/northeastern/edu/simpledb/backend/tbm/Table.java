@@ -1,7 +1,9 @@
 package com.northeastern.edu.simpledb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
+import com.northeastern.edu.simpledb.backend.im.BPlusTree;
 import com.northeastern.edu.simpledb.backend.parser.statement.*;
+import com.northeastern.edu.simpledb.backend.utils.LongLongMap;
 import com.northeastern.edu.simpledb.backend.utils.Panic;
 import com.northeastern.edu.simpledb.backend.utils.ParseStringRes;
 import com.northeastern.edu.simpledb.backend.utils.Parser;
@@ -49,7 +51,7 @@ public class Table {
             String fieldName = create.fieldName[i];
             String fieldType = create.fieldType[i];
             boolean indexed = Arrays.asList(create.index).contains(fieldName);
-            table.fields.add(Field.createField(table, xid, fieldName, fieldType, indexed));
+            table.fields.add(Field.createField(table, xid, fieldName, fieldType, indexed, create.fanout));
         }
         return table.persistSelf(xid);
     }
@@ -86,18 +88,25 @@ public class Table {
     }
 
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
         int count = 0;
-        for (Long uid : uids) {
-            if (tbm.vm.delete(xid, uid)) {
-                count++;
+        for (BPlusTree.Cursor cursor : parseWhere(delete.where)) {
+            long[] uids = cursor.batch();
+            for (int n = cursor.next(); n > 0; n = cursor.next()) {
+                for (int i = 0; i < n; i++) {
+                    if (tbm.vm.delete(xid, uids[i])) {
+                        count++;
+                    }
+                }
             }
         }
         return count;
     }
 
-    // return all uid in the range
-    private List<Long> parseWhere(Where where) throws Exception {
+    /**
+     * return cursors over all uid in the range, the uids are read in
+     * batches while they are used instead of being collected up front
+     */
+    private List<BPlusTree.Cursor> parseWhere(Where where) throws Exception {
         long l0 = 0L, r0 = 0L, l1 = 0L, r1 = 0L;
         Boolean single = false;
         Field fd = null;
@@ -125,12 +134,12 @@ public class Table {
             l1 = calWhereRes.l1; r1 = calWhereRes.r1;
             single = calWhereRes.single;
         }
-        List<Long> uids = fd.search(l0, r0);
+        List<BPlusTree.Cursor> cursors = new ArrayList<>();
+        cursors.add(fd.cursor(l0, r0));
         if (!single) {
-            List<Long> list = fd.search(l1, r1);
-            uids.addAll(list);
+            cursors.add(fd.cursor(l1, r1));
         }
-        return uids;
+        return cursors;
     }
 
     private CalWhereRes calWhere(Field fd, Where where) throws Exception {
@@ -175,7 +184,6 @@ public class Table {
     }
 
     public int update(long xid, Update update) throws Exception {
-        List<Long> uids = parseWhere(update.where);
         Field fd = null;
         for (Field f : fields) {
             if (f.fieldName.equals(update.fieldName)) {
@@ -186,20 +194,30 @@ public class Table {
         if (fd == null) throw Error.FieldNotFoundException;
         Object value = fd.string2Value(update.value);
         int count = 0;
-        for (Long uid : uids) {
-            byte[] raw = tbm.vm.read(xid, uid);
-            if (raw == null) continue;
-            tbm.vm.delete(xid, uid);
-            Map<String, Object> entry = parseEntry(raw);
-            entry.put(fd.fieldName, value);
-            raw = entry2Raw(entry);
-            long uuid = tbm.vm.insert(xid, raw);
+        // the new versions are inserted into the indexes being scanned, they aren't updated again
+        LongLongMap inserted = new LongLongMap();
+        for (BPlusTree.Cursor cursor : parseWhere(update.where)) {
+            long[] uids = cursor.batch();
+            for (int n = cursor.next(); n > 0; n = cursor.next()) {
+                for (int i = 0; i < n; i++) {
+                    long uid = uids[i];
+                    if (inserted.containsKey(uid)) continue;
+                    byte[] raw = tbm.vm.read(xid, uid);
+                    if (raw == null) continue;
+                    tbm.vm.delete(xid, uid);
+                    Map<String, Object> entry = parseEntry(raw);
+                    entry.put(fd.fieldName, value);
+                    raw = entry2Raw(entry);
+                    long uuid = tbm.vm.insert(xid, raw);
+                    inserted.put(uuid, uid);
 
-            count ++;
+                    count ++;
 
-            for (Field field : fields) {
-                if (field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
+                    for (Field field : fields) {
+                        if (field.isIndexed()) {
+                            field.insert(entry.get(field.fieldName), uuid);
+                        }
+                    }
                 }
             }
         }
@@ -218,13 +236,17 @@ public class Table {
     }
 
     public String read(long xid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);
         StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = tbm.vm.read(xid, uid);
-            if (raw == null) continue;
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry, read)).append("\n");
+        for (BPlusTree.Cursor cursor : parseWhere(read.where)) {
+            long[] uids = cursor.batch();
+            for (int n = cursor.next(); n > 0; n = cursor.next()) {
+                for (int i = 0; i < n; i++) {
+                    byte[] raw = tbm.vm.read(xid, uids[i]);
+                    if (raw == null) continue;
+                    Map<String, Object> entry = parseEntry(raw);
+                    sb.append(printEntry(entry, read)).append("\n");
+                }
+            }
         }
         return sb.toString();
     }
@@ -289,11 +311,11 @@ public class Table {
         name = parseStringRes.str;
         position += parseStringRes.next;
         nextUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position + Long.BYTES));
-        position += Long.SIZE;
+        position += Long.BYTES;
 
         while (position < raw.length) {
             long uid = Parser.parseLong(Arrays.copyOfRange(raw, position, position + Long.BYTES));
-            position += Long.SIZE;
+            position += Long.BYTES;
             fields.add(Field.loadField(this, uid));
         }
         return this;
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Collection;
 
 public abstract class AbstractTransactionManager {
     abstract long begin();
@@ -17,6 +18,7 @@ public abstract class AbstractTransactionManager {
     abstract boolean isActive(long xid);
     abstract boolean isCommitted(long xid);
     abstract boolean isAborted(long xid);
+    abstract void abortActive(Collection<Long> xids);
     abstract void close();
 
     public static TransactionManager create(String path) {
@@ -38,10 +40,9 @@ public abstract class AbstractTransactionManager {
             Panic.panic(e);
         }
 
-        ByteBuffer buf = ByteBuffer.allocate(TransactionManager.XID_HEADER_LENGTH);
+        ByteBuffer buf = TransactionManager.header(0);
         try {
-            fc.position(0);
-            fc.write(buf);
+            fc.write(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
@@ -57,6 +58,8 @@ public abstract class AbstractTransactionManager {
         if(!f.canRead() || !f.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
+        TransactionManager.upgrade(f);
+
         FileChannel fc = null;
         RandomAccessFile raf = null;
         try {
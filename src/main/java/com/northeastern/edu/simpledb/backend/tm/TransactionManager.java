@@ -4,24 +4,71 @@ import com.northeastern.edu.simpledb.backend.utils.Panic;
 import com.northeastern.edu.simpledb.backend.utils.Parser;
 import com.northeastern.edu.simpledb.common.Error;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 
-/*
-
-*/
+/**
+ * Transaction Manager
+ * the state of every xid takes 2 bits of a bitmap in the xid file, the
+ * file is memory-mapped, so checking a state is a memory read, and a
+ * state is changed by a CAS on the int holding it, then forced to disk
+ *
+ * xids are allocated in batches of XID_BATCH, the counter in the header
+ * is the end of the batch, so it is written once per batch, and a new
+ * transaction is active without writing its state since ACTIVE is 00.
+ * after a crash the counter is the end of the last batch, recovery
+ * aborts the xids of that batch left active, unused or never logged,
+ * together with the transactions it found active in the log
+ *
+ * format: [Magic: 4bytes][Version: 4bytes][XidCounter: 8bytes][States of xid 1 to 16: 4bytes]...
+ * a file written before the bitmap, `[XidCounter: 8bytes][State of xid 1: 1byte]...`,
+ * is converted when it is opened
+ */
 public class TransactionManager extends AbstractTransactionManager{
 
+    static final int XID_MAGIC = 0x53445849;
+
+    static final int XID_VERSION = 2;
+
     // the length of header of xid file, unit is byte
-    static final int XID_HEADER_LENGTH = 8;
+    static final int XID_HEADER_LENGTH = 16;
+
+    // starting position of the xid counter in the header
+    private static final int OF_COUNTER = 8;
+
+    // the length of header of a xid file written before the bitmap
+    static final int LEGACY_HEADER_LENGTH = 8;
+
+    // the number of bits of the state of a xid
+    private static final int STATE_BITS = 2;
 
-    // the size of each xid, unit is byte
-    private static final int XID_FIELD_SIZE = 1;
+    private static final int STATE_MASK = (1 << STATE_BITS) - 1;
+
+    // the number of xids whose states share an int of the bitmap
+    private static final int XIDS_PER_INT = Integer.SIZE / STATE_BITS;
+
+    // the number of xids allocated by a write of the header
+    static final int XID_BATCH = 1024;
+
+    // the mapping of xid file grows by this many bytes
+    private static final int MAP_CHUNK = 1 << 16;
+
+    // atomic access to an int of the mapping
+    private static final VarHandle STATES = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
 
     // three states of transaction
     private static final byte FIELD_TRAN_ACTIVE = 0;
@@ -36,7 +83,10 @@ public class TransactionManager extends AbstractTransactionManager{
 
     private RandomAccessFile file;
     private FileChannel fc;
+    private volatile MappedByteBuffer map;
     private long xidCounter;
+    // the counter in the header, xids up to it are allocated
+    private long xidLimit;
     private Lock counterLock;
 
     public TransactionManager(RandomAccessFile raf, FileChannel fc) {
@@ -50,7 +100,7 @@ public class TransactionManager extends AbstractTransactionManager{
      * check if the xid file is valid
      * read the xidcounter in XID_FILE_HEADER, calculate
      * the theoretical length of the file based on it, and
-     * compare it with the actual length
+     * compare it with the actual length, then map the file
      */
     private void checkXIDCounter() {
         long fileLength = 0;
@@ -65,76 +115,102 @@ public class TransactionManager extends AbstractTransactionManager{
 
         ByteBuffer buf = ByteBuffer.allocate(XID_HEADER_LENGTH);
         try {
-            fc.position(0);
-            fc.read(buf);
+            fc.read(buf, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.xidCounter = Parser.parseLong(buf.array());
+        if (buf.getInt(0) != XID_MAGIC || buf.getInt(4) != XID_VERSION) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        this.xidCounter = buf.getLong(OF_COUNTER);
+        this.xidLimit = xidCounter;
         long end = getXidPosition(this.xidCounter + 1);
-        if (end != fileLength) {
+        if (end > fileLength) {
             Panic.panic(Error.BadXIDFileException);
         }
+        map(Math.max(fileLength, end + Integer.BYTES));
+    }
+
+    // map at least `length` bytes of xid file, the file grows if it is shorter
+    private void map(long length) {
+        long size = (length + MAP_CHUNK - 1) / MAP_CHUNK * MAP_CHUNK;
+        if (size > Integer.MAX_VALUE) Panic.panic(Error.BadXIDFileException);
+        try {
+            map = fc.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
     }
 
     /**
-     * calculate its position in xid file based on input `xid`
+     * calculate the position of the int holding the state of input `xid`
      * `xid` means it is the normal xid transaction starting from 1
      * the xid of super transaction is 0
      */
-    private long getXidPosition(long xid) {
+    private static long getXidPosition(long xid) {
         if (xid == 0) {
             throw new RuntimeException("position of xid can't be zero");
         }
-        return (xid - 1) * XID_FIELD_SIZE + XID_HEADER_LENGTH;
+        return (xid - 1) / XIDS_PER_INT * Integer.BYTES + XID_HEADER_LENGTH;
     }
 
-    // update state by xid
-    private void updateXID(long xid, byte state) {
-        long offset = getXidPosition(xid);
-        byte[] tmp = new byte[XID_FIELD_SIZE];
-        tmp[0] = state;
-        try {
-            fc.position(offset);
-            fc.write(ByteBuffer.wrap(tmp));
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+    // the position of the state of `xid` in the int holding it
+    private static int getXidShift(long xid) {
+        return (int) ((xid - 1) % XIDS_PER_INT) * STATE_BITS;
+    }
 
+    // update state by xid, the states sharing the int are left as they are
+    private void updateXID(long xid, byte state) {
+        setState(xid, state);
         flushToDisk();
     }
 
-    // increase one to xid counter and update header of xid file
+    private void setState(long xid, byte state) {
+        MappedByteBuffer map = this.map;
+        int position = (int) getXidPosition(xid);
+        int shift = getXidShift(xid);
+        int states;
+        do {
+            states = (int) STATES.getVolatile(map, position);
+        } while (!STATES.compareAndSet(map, position, states, (states & ~(STATE_MASK << shift)) | (state << shift)));
+    }
+
+    /**
+     * increase one to xid counter, the header of xid file is updated only
+     * when a new batch of xids is allocated, the mapping grows first if it is full
+     */
     private void incrXIDCounter() {
         xidCounter++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
-        try {
-            fc.position(0);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+        if (xidCounter <= xidLimit) return;
+
+        xidLimit = xidCounter + XID_BATCH - 1;
+        if (getXidPosition(xidLimit + 1) + Integer.BYTES > map.capacity()) {
+            map(getXidPosition(xidLimit + 1) + Integer.BYTES);
         }
+        writeCounter(xidLimit);
+    }
 
+    private void writeCounter(long counter) {
+        map.putLong(OF_COUNTER, counter);
         flushToDisk();
     }
 
+    /**
+     * force the states written through the mapping, FileChannel#force
+     * isn't required to write a mapping. the mapping is only ever grown,
+     * so the current one covers every position written before
+     */
     private void flushToDisk() {
-        try {
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+        map.force();
     }
 
-    // start a new transaction
+    // start a new transaction, the state of a new xid is already active
     @Override
     public long begin() {
         counterLock.lock();
         try {
-            long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
             incrXIDCounter();
-            return xid;
+            return xidCounter;
         } finally {
             counterLock.unlock();
         }
@@ -154,15 +230,8 @@ public class TransactionManager extends AbstractTransactionManager{
 
     // check if xid transaction is in input `state`
     private boolean checkXID(long xid, byte state) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.allocate(XID_FIELD_SIZE);
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        return buf.array()[0] == state;
+        int states = (int) STATES.getVolatile(map, (int) getXidPosition(xid));
+        return (states >>> getXidShift(xid) & STATE_MASK) == state;
     }
 
     @Override
@@ -183,8 +252,58 @@ public class TransactionManager extends AbstractTransactionManager{
         return checkXID(xid, FIELD_TRAN_ABORTED);
     }
 
+    /**
+     * abort the transactions left active by a crash, invoked by recovery
+     * with the active transactions it found in the log after they are
+     * undone. the counter read on open is the end of the last batch, the
+     * xids of the batch still active were never used or never logged, so
+     * they are aborted too, the states are forced once for all of them
+     */
+    @Override
+    public void abortActive(Collection<Long> xids) {
+        counterLock.lock();
+        try {
+            abortActiveRange(Math.max(1, xidLimit - XID_BATCH + 1), xidLimit);
+        } finally {
+            counterLock.unlock();
+        }
+        for (long xid : xids) {
+            if (isActive(xid)) setState(xid, FIELD_TRAN_ABORTED);
+        }
+        flushToDisk();
+    }
+
+    // every active xid from `from` to `to` becomes aborted, each int of the bitmap is written once
+    private void abortActiveRange(long from, long to) {
+        MappedByteBuffer map = this.map;
+        long first = from;
+        while (first <= to) {
+            long last = Math.min(to, first + XIDS_PER_INT - 1 - getXidShift(first) / STATE_BITS);
+            // the low bit of every state from first to last
+            int lows = 0;
+            for (long xid = first; xid <= last; xid++) {
+                lows |= 1 << getXidShift(xid);
+            }
+            int position = (int) getXidPosition(first);
+            int states;
+            int active;
+            do {
+                states = (int) STATES.getVolatile(map, position);
+                active = ~(states | states >>> 1) & lows; // 00 is active
+            } while (!STATES.compareAndSet(map, position, states, states | active << 1)); // 10 is aborted
+            first = last + 1;
+        }
+    }
+
+    // the unused xids of the batch are given back, the next open allocates right after the last transaction
     @Override
     public void close() {
+        counterLock.lock();
+        try {
+            writeCounter(xidCounter);
+        } finally {
+            counterLock.unlock();
+        }
         try {
             fc.close();
             file.close();
@@ -192,4 +311,56 @@ public class TransactionManager extends AbstractTransactionManager{
             Panic.panic(e);
         }
     }
+
+    // write the header of an empty xid file
+    static ByteBuffer header(long xidCounter) {
+        ByteBuffer buf = ByteBuffer.allocate(XID_HEADER_LENGTH);
+        buf.putInt(XID_MAGIC).putInt(XID_VERSION).putLong(xidCounter);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * convert a xid file written before the bitmap if `f` is one, the
+     * converted file is written aside and renamed, so a crash leaves
+     * the old file or the new one
+     */
+    static void upgrade(File f) {
+        byte[] raw = null;
+        try {
+            raw = Files.readAllBytes(f.toPath());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if (raw.length >= Integer.BYTES && Parser.parseInt(raw) == XID_MAGIC) return;
+        if (raw.length < LEGACY_HEADER_LENGTH) Panic.panic(Error.BadXIDFileException);
+
+        long xidCounter = Parser.parseLong(raw);
+        if (LEGACY_HEADER_LENGTH + xidCounter != raw.length) Panic.panic(Error.BadXIDFileException);
+
+        ByteBuffer buf = ByteBuffer.allocate((int) getXidPosition(xidCounter + 1) + Integer.BYTES);
+        buf.put(header(xidCounter));
+        for (long xid = 1; xid <= xidCounter; xid++) {
+            int position = (int) getXidPosition(xid);
+            byte state = raw[(int) (LEGACY_HEADER_LENGTH + xid - 1)];
+            buf.putInt(position, buf.getInt(position) | (state & STATE_MASK) << getXidShift(xid));
+        }
+        buf.clear();
+
+        File tmp = new File(f.getPath() + ".tmp");
+        try (FileChannel tmpFc = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) {
+                tmpFc.write(buf);
+            }
+            tmpFc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
 }
@@ -0,0 +1,83 @@
+package com.northeastern.edu.simpledb.backend.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram
+ * a lock free histogram of latencies, bucket i counts the
+ * samples taking [2^(i-1), 2^i) microseconds, bucket 0 counts
+ * the samples taking less than one microsecond
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final LongAdder[] buckets;
+
+    private final LongAdder totalNanos;
+
+    public LatencyHistogram() {
+        this.buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+        this.totalNanos = new LongAdder();
+    }
+
+    // record a sample measured by System.nanoTime()
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets[bucket].increment();
+        totalNanos.add(nanos);
+    }
+
+    public long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public double meanMicros() {
+        long count = count();
+        return count == 0 ? 0 : totalNanos.sum() / 1000.0 / count;
+    }
+
+    /**
+     * the upper bound of the bucket the percentile falls in, unit is
+     * microsecond, `percentile` ranges from 0 to 100
+     */
+    public long percentileMicros(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        if (count == 0) return 0;
+
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) return 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        totalNanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fus p50<%dus p99<%dus p999<%dus",
+                count(), meanMicros(), percentileMicros(50), percentileMicros(99), percentileMicros(99.9));
+    }
+}
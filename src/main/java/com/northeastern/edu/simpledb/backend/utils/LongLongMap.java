@@ -0,0 +1,130 @@
+package com.northeastern.edu.simpledb.backend.utils;
+
+import java.util.Arrays;
+
+/**
+ * LongLongMap
+ * a map from long to long kept in two arrays by linear probing, keys
+ * and values aren't boxed. it isn't thread safe, keys must not be
+ * Long.MIN_VALUE, which marks an empty slot
+ */
+public class LongLongMap {
+
+    // returned by `get()` and `remove()` if the key is absent
+    public static final long NONE = Long.MIN_VALUE;
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+
+    private long[] values;
+
+    private int size;
+
+    public LongLongMap() {
+        this(16);
+    }
+
+    public LongLongMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2) - 1) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private LongLongMap(LongLongMap other) {
+        keys = other.keys.clone();
+        values = other.values.clone();
+        size = other.size;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+    }
+
+    public long get(long key) {
+        for (int i = slot(key); ; i = (i + 1) & (keys.length - 1)) {
+            if (keys[i] == key) return values[i];
+            if (keys[i] == EMPTY) return NONE;
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != NONE;
+    }
+
+    // return the previous value of the key, or NONE
+    public long put(long key, long value) {
+        int i = slot(key);
+        for (; keys[i] != EMPTY; i = (i + 1) & (keys.length - 1)) {
+            if (keys[i] == key) {
+                long old = values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) resize();
+        return NONE;
+    }
+
+    /**
+     * remove the key and move the following keys of the probe sequence
+     * back, so no slot is left marked as deleted
+     * return the removed value, or NONE
+     */
+    public long remove(long key) {
+        int mask = keys.length - 1;
+        int i = slot(key);
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY) return NONE;
+            i = (i + 1) & mask;
+        }
+        long old = values[i];
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            // the key at j may fill the hole if its home isn't between the hole and j
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = EMPTY;
+        size--;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // the keys in no particular order
+    public long[] keys() {
+        long[] present = new long[size];
+        int n = 0;
+        for (long key : keys) {
+            if (key != EMPTY) present[n++] = key;
+        }
+        return present;
+    }
+
+    public LongLongMap copy() {
+        return new LongLongMap(this);
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) put(oldKeys[i], oldValues[i]);
+        }
+    }
+}
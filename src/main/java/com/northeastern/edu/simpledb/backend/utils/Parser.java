@@ -53,4 +53,37 @@ public class Parser {
         }
         return res;
     }
+
+    // copy bytes [from, to) out of the buffer, the position of the buffer is untouched
+    public static byte[] copyOfRange(ByteBuffer buf, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        ByteBuffer view = buf.duplicate();
+        view.position(from);
+        view.get(bytes);
+        return bytes;
+    }
+
+    // fill `dst` with the bytes of the buffer starting at `position`, the position of the buffer is untouched
+    public static void get(ByteBuffer buf, int position, byte[] dst) {
+        ByteBuffer view = buf.duplicate();
+        view.position(position);
+        view.get(dst);
+    }
+
+    // write `src` into the buffer starting at `position`, the position of the buffer is untouched
+    public static void put(ByteBuffer buf, int position, byte[] src) {
+        ByteBuffer view = buf.duplicate();
+        view.position(position);
+        view.put(src);
+    }
+
+    // copy `length` bytes from one buffer to another, the ranges must not overlap
+    public static void copy(ByteBuffer src, int srcPosition, ByteBuffer dst, int dstPosition, int length) {
+        ByteBuffer from = src.duplicate();
+        from.position(srcPosition);
+        from.limit(srcPosition + length);
+        ByteBuffer to = dst.duplicate();
+        to.position(dstPosition);
+        to.put(from);
+    }
 }
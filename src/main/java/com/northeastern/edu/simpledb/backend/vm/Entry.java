@@ -3,13 +3,20 @@ package com.northeastern.edu.simpledb.backend.vm;
 import com.google.common.primitives.Bytes;
 import com.northeastern.edu.simpledb.backend.common.SubArray;
 import com.northeastern.edu.simpledb.backend.dm.dataItem.DataItem;
+import com.northeastern.edu.simpledb.backend.dm.page.Page;
+import com.northeastern.edu.simpledb.backend.tm.TransactionManager;
 import com.northeastern.edu.simpledb.backend.utils.Parser;
 
-import java.util.Arrays;
+import static com.northeastern.edu.simpledb.backend.tm.TransactionManager.SUPER_XID;
+
 
 /**
  * VM provide Entry to the upper layer
  * [XMIN][XMAX][data]
+ * the highest bits of XMIN and XMAX are hint bits, the first reader that
+ * finds out the creator or the deleter is finished sets them, so later
+ * readers skip the transaction manager. hints aren't logged, a lost
+ * hint is set again by the next reader
  */
 public class Entry {
 
@@ -17,6 +24,14 @@ public class Entry {
     private static final int OF_XMAX = OF_XMIN + 8;
     private static final int OF_DATA = OF_XMAX + 8;
 
+    // the transaction is committed, a xid never reaches the hint bits
+    private static final long HINT_COMMITTED = 1L << 63;
+
+    // the transaction is aborted, only set in XMAX
+    private static final long HINT_ABORTED = 1L << 62;
+
+    private static final long XID_MASK = HINT_ABORTED - 1;
+
     private long uid;
     private DataItem dataItem;
     private VersionManager vm;
@@ -30,6 +45,8 @@ public class Entry {
 
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception {
         DataItem di = vm.dm.read(uid);
+        // the data item was invalidated, e.g. the insertion was undone by recovery
+        if (di == null) return null;
         return newEntry(vm, di, uid);
     }
 
@@ -47,29 +64,66 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray subArray = dataItem.data();
-            byte[] data = new byte[subArray.end - (subArray.start + OF_DATA)];
-            System.arraycopy(subArray.raw, subArray.start + OF_DATA, data, 0, data.length);
-            return data;
+            return Parser.copyOfRange(subArray.raw, subArray.start + OF_DATA, subArray.end);
         } finally {
             dataItem.rUnLock();
         }
     }
 
     public long getXmin() {
+        return getRaw(OF_XMIN) & XID_MASK;
+    }
+
+    public long getXmax() {
+        return getRaw(OF_XMAX) & XID_MASK;
+    }
+
+    // whether the transaction created the entry is committed, it is remembered by a hint in XMIN
+    public boolean isXminCommitted(TransactionManager tm) {
+        long xmin = getRaw(OF_XMIN);
+        if ((xmin & HINT_COMMITTED) != 0 || xmin == SUPER_XID) return true;
+        if (!tm.isCommitted(xmin)) return false;
+        hint(OF_XMIN, xmin, xmin | HINT_COMMITTED);
+        return true;
+    }
+
+    // whether the transaction deleted the entry is committed, it is remembered by a hint in XMAX
+    public boolean isXmaxCommitted(TransactionManager tm) {
+        long xmax = getRaw(OF_XMAX);
+        if ((xmax & HINT_COMMITTED) != 0 || xmax == SUPER_XID) return true;
+        if ((xmax & HINT_ABORTED) != 0) return false;
+        if (tm.isCommitted(xmax)) {
+            hint(OF_XMAX, xmax, xmax | HINT_COMMITTED);
+            return true;
+        }
+        if (tm.isAborted(xmax)) hint(OF_XMAX, xmax, xmax | HINT_ABORTED);
+        return false;
+    }
+
+    private long getRaw(int offset) {
         dataItem.rLock();
         try {
             SubArray subArray = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(subArray.raw, subArray.start + OF_XMIN, subArray.start + OF_XMAX));
+            return subArray.raw.getLong(subArray.start + offset);
         } finally {
             dataItem.rUnLock();
         }
     }
 
-    public long getXmax() {
+    /**
+     * set hint bits unless a writer changed the field meanwhile, readers
+     * setting hints of the same field write the same value, so the
+     * read lock is enough
+     */
+    private void hint(int offset, long expected, long hinted) {
         dataItem.rLock();
         try {
             SubArray subArray = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(subArray.raw, subArray.start + OF_XMAX, subArray.start + OF_DATA));
+            if (subArray.raw.getLong(subArray.start + offset) != expected) return;
+            Page page = dataItem.page();
+            page.startModify();
+            subArray.raw.putLong(subArray.start + offset, hinted);
+            page.endModify();
         } finally {
             dataItem.rUnLock();
         }
@@ -79,7 +133,7 @@ public class Entry {
         dataItem.before();
         try {
             SubArray subArray = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid), 0, subArray.raw, subArray.start + OF_XMAX, 8);
+            subArray.raw.putLong(subArray.start + OF_XMAX, xid);
         } finally {
             dataItem.after(xid);
         }
@@ -1,187 +1,542 @@
 package com.northeastern.edu.simpledb.backend.vm;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.northeastern.edu.simpledb.backend.utils.LatencyHistogram;
+import com.northeastern.edu.simpledb.backend.utils.LongLongMap;
 import com.northeastern.edu.simpledb.common.Error;
-import com.northeastern.edu.simpledb.common.Error.*;
 
+/**
+ * Lock Table
+ * the holders and the waiters of uids are partitioned into stripes by
+ * uid, acquiring a free uid only takes the lock of its stripe. the uids
+ * held by each xid are partitioned by xid the same way
+ *
+ * a transaction waits for at most one uid and a uid has one holder, so
+ * the wait-for graph is a set of chains, a new waiting edge makes a
+ * deadlock only if the chain starting at the holder leads back to the
+ * waiting transaction, only that chain is walked. the graph is guarded
+ * by its own lock, which is taken after the lock of a stripe
+ *
+ * with a wait timeout, a conflicting request only adds its edge, waiters
+ * give up after the timeout, and a detector thread looks for cycles in a
+ * copy of the graph periodically, the cheapest transaction of a cycle is
+ * woken up as the victim and aborts itself
+ */
 public class LockTable {
 
+    // the number of stripes, a power of 2
+    private static final int STRIPES = 64;
+
+    private static final long[] NO_UIDS = new long[0];
+
+    private static class Stripe {
+
+        private final Lock lock = new ReentrantLock();
+
+        /**
+         * what xid is holding the uid
+         * format: {uid: xid}
+         */
+        private final LongLongMap u2x = new LongLongMap();
+
+        /**
+         * all of xid are waiting uid in arriving order
+         * format: {uid: [waiter0, waiter1, waiter2...]}
+         */
+        private final Map<Long, Deque<Waiter>> wait = new HashMap<>();
+    }
+
     /**
-     * what uids that xid is holding
-     * format: {xid: [uid0, uid1, uid2...]}
+     * the uids held by the xids of a stripe, a uid has one holder, so the
+     * uids of a xid are chained by uid without a set for each xid
      */
-    private Map<Long, List<Long>> x2u;
+    private static class Holding {
+
+        private final Lock lock = new ReentrantLock();
+
+        /**
+         * the uid that xid acquired last
+         * format: {xid: uid}
+         */
+        private final LongLongMap last = new LongLongMap();
+
+        /**
+         * the uid that the holder of uid acquired before it
+         * format: {uid: uid}
+         */
+        private final LongLongMap prev = new LongLongMap();
+
+        /**
+         * how many uids xid is holding
+         * format: {xid: count}
+         */
+        private final LongLongMap count = new LongLongMap();
+    }
 
     /**
-     * what xid is holding the uid
-     * format: {uid: xid}
+     * the handle returned to a waiting transaction by `add()`, it is woken
+     * up once the uid is granted to it or it is chosen as the victim of a
+     * deadlock, the thread waking it up isn't the waiting one
      */
-    private Map<Long, Long> u2x;
+    public static class Waiter {
+
+        private static final int WAITING = 0;
+        private static final int GRANTED = 1;
+        private static final int TIMED_OUT = 2;
+        private static final int VICTIM = 3;
+
+        private final long xid;
+
+        private final long uid;
+
+        private final long since = System.nanoTime();
+
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        private final CountDownLatch granted = new CountDownLatch(1);
+
+        private Waiter(long xid, long uid) {
+            this.xid = xid;
+            this.uid = uid;
+        }
+
+        // the uid is going to be granted, fails if the waiter gave up
+        private boolean claim() {
+            return state.compareAndSet(WAITING, GRANTED);
+        }
+
+        private void grant() {
+            granted.countDown();
+        }
+
+        // give up waiting, fails if the uid is claimed for it
+        private boolean cancel(int reason) {
+            return state.compareAndSet(WAITING, reason);
+        }
+
+        /**
+         * wait at most `timeout` milliseconds to be woken up, 0 means no
+         * timeout, an interrupt only ends a wait with a timeout
+         * return false if the timeout passed
+         */
+        boolean await(long timeout) {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        if (timeout > 0) return granted.await(timeout, TimeUnit.MILLISECONDS);
+                        granted.await();
+                        return true;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        if (timeout > 0) return false;
+                    }
+                }
+            } finally {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final Stripe[] stripes;
+
+    // what uids that xid is holding, partitioned by xid
+    private final Holding[] holdings;
 
     /**
-     * all of xid are waiting uid
-     * format: {uid: [xid0, xid1, xid2...]}
+     * what uid that xid is waiting for
+     * format:  {xid : uid}
      */
-    private Map<Long, List<Long>> wait;
+    private final LongLongMap waitU;
 
     /**
-     * the lock of xid is waiting resource
-     * format: {xid: Lock}
+     * what xid is holding the uid waited for
+     * format: {uid: xid}
      */
-    private Map<Long, Lock> waitLock;
+    private final LongLongMap waitedU2x;
+
+    // guards `waitU` and `waitedU2x`
+    private final Lock graphLock;
+
+    private final LongAdder waits = new LongAdder();
+
+    private final LongAdder deadlocks = new LongAdder();
+
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+
+    private final LongAdder timeouts = new LongAdder();
+
+    private final LongAdder victims = new LongAdder();
+
+    // how long a waiter waits before giving up, 0 means detecting deadlocks on every wait
+    private final long waitTimeout;
+
+    private final Thread detector;
+
+    private volatile boolean closed;
+
+    public LockTable() {
+        this(0, 0);
+    }
 
     /**
-     * what uid that xid is waiting for
-     * format:  {xid : uid}
+     * a lock table whose waiters give up after `waitTimeout` milliseconds,
+     * deadlocks are looked for every `detectInterval` milliseconds, no
+     * detector is started if it is 0
      */
-    private Map<Long, Long> waitU;
+    public LockTable(long waitTimeout, long detectInterval) {
+        this.waitTimeout = waitTimeout;
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        holdings = new Holding[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            holdings[i] = new Holding();
+        }
+        waitU = new LongLongMap();
+        waitedU2x = new LongLongMap();
+        graphLock = new ReentrantLock();
+        if (waitTimeout > 0 && detectInterval > 0) {
+            detector = new Thread(() -> runDetector(detectInterval), "deadlock-detector");
+            detector.setDaemon(true);
+            detector.start();
+        } else {
+            detector = null;
+        }
+    }
 
-    private Lock lock;
+    private static int index(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (STRIPES - 1);
+    }
 
-    public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
+    private Stripe stripe(long uid) {
+        return stripes[index(uid)];
+    }
+
+    private Holding holding(long xid) {
+        return holdings[index(xid)];
     }
 
-    // add a relationship which is xid is waiting uid
-    public Lock add(long xid, long uid) throws Exception{
-        lock.lock();
+    /**
+     * add a relationship which is xid is waiting uid
+     * return null if xid holds uid now, otherwise the waiter to pass to
+     * `await()` until uid is granted to xid
+     */
+    public Waiter add(long xid, long uid) throws Exception{
+        Stripe stripe = stripe(uid);
+        stripe.lock.lock();
         try {
+            long holder = stripe.u2x.get(uid);
+
             // xid is holding uid
-            if (isInList(x2u, xid, uid)) return null;
+            if (holder == xid) return null;
 
             // if no one is holding uid, add the relationship directly (acquired resource)
-            if (!u2x.containsKey(uid)) {
-                u2x.put(uid, xid);
-                putIntoList(x2u, xid, uid);
+            if (holder == LongLongMap.NONE) {
+                stripe.u2x.put(uid, xid);
+                hold(xid, uid);
                 return null;
             }
 
-            // other is holding uid
-            // try to wait
-            waitU.put(xid, uid);
-            putIntoList(wait, uid, xid);
-
-            // check deadlock
-            if (hasDeadLock()) {
-                waitU.remove(xid);
-                removeFromList(wait, uid, xid);
-                throw Error.DeadLockException;
+            // other is holding uid, check deadlock before waiting unless the detector does
+            graphLock.lock();
+            try {
+                if (waitTimeout == 0 && hasDeadLock(xid, holder)) {
+                    deadlocks.increment();
+                    throw Error.DeadLockException;
+                }
+                waitU.put(xid, uid);
+                waitedU2x.put(uid, holder);
+            } finally {
+                graphLock.unlock();
             }
 
             // no deadlock, start waiting
-            Lock l = new ReentrantLock();
-            l.lock();
-            waitLock.put(xid, l); // store lock for the releasing later
-            return l;
+            Waiter waiter = new Waiter(xid, uid);
+            stripe.wait.computeIfAbsent(uid, k -> new ArrayDeque<>()).addLast(waiter);
+            waits.increment();
+            return waiter;
         } finally {
-            lock.unlock();
+            stripe.lock.unlock();
         }
     }
 
-    // remove a relationship between xid and uid
-    public void remove(long xid) {
-        lock.lock();
+    /**
+     * wait until the uid of the waiter returned by `add()` is granted, with
+     * a wait timeout it throws if the timeout passes or the transaction is
+     * chosen as the victim of a deadlock, it doesn't wait any more then
+     */
+    public void await(Waiter waiter) throws Exception {
+        if (waitTimeout == 0) {
+            waiter.await(0);
+            return;
+        }
+
+        boolean woken = waiter.await(waitTimeout);
+        if (!woken && waiter.cancel(Waiter.TIMED_OUT)) {
+            timeouts.increment();
+            withdraw(waiter);
+            throw Error.LockTimeoutException;
+        }
+        if (waiter.state.get() == Waiter.GRANTED) {
+            // it may be claimed right before the timeout, the grant follows soon
+            waiter.await(0);
+            return;
+        }
+        withdraw(waiter);
+        throw Error.DeadLockException;
+    }
+
+    // take a waiter giving up out of the queue and the graph
+    private void withdraw(Waiter waiter) {
+        Stripe stripe = stripe(waiter.uid);
+        stripe.lock.lock();
         try {
-            List<Long> uids = x2u.get(xid);
-            if (uids != null) {
-                while (uids.size() > 0) {
-                    Long uid = uids.remove(0);
-                    selectNewXID(uid); // select the next xid for uid from candidates
-                }
+            Deque<Waiter> waiters = stripe.wait.get(waiter.uid);
+            if (waiters != null) {
+                waiters.remove(waiter);
+                if (waiters.isEmpty()) stripe.wait.remove(waiter.uid);
+            }
+            graphLock.lock();
+            try {
+                waitU.remove(waiter.xid);
+                if (!stripe.wait.containsKey(waiter.uid)) waitedU2x.remove(waiter.uid);
+            } finally {
+                graphLock.unlock();
             }
         } finally {
-            lock.unlock();
-        }
-    }
-
-    // select the next xid for uid from candidates
-    private void selectNewXID(Long uid) {
-        u2x.remove(uid); // remove the relationship which is uid is acquired by xid
-        List<Long> xids = wait.get(uid); // get candidates queue
-        if (xids == null) return ;
-        assert xids.size() > 0;
-
-        while (xids.size() > 0) {
-            Long xid = xids.remove(0);
-            if (!waitLock.containsKey(xid)) { // no lock found for the xid
-                continue;
-            } else { // assign uid this xid
-                u2x.put(uid, xid);
-                putIntoList(x2u, xid, uid);
-                Lock l = waitLock.remove(xid);
-                waitU.remove(xid);
-                l.unlock();
+            stripe.lock.unlock();
+        }
+    }
+
+    // remove a relationship between xid and uid
+    public void remove(long xid) {
+        long[] uids = release(xid);
+        for (long uid : uids) {
+            Stripe stripe = stripe(uid);
+            stripe.lock.lock();
+            try {
+                selectNewXID(stripe, uid); // select the next xid for uid from candidates
+            } finally {
+                stripe.lock.unlock();
             }
         }
     }
 
-    private void removeFromList(Map<Long, List<Long>> wait, long uid, long xid) {
-        List<Long> list = wait.getOrDefault(uid, List.of());
-        Iterator<Long> iterator = list.iterator();
-        while (iterator.hasNext()) {
-            Long e;
-            if ((e = iterator.next()) == xid) {
-                iterator.remove();
+    // select the next xid for uid from candidates, the first waiter still waiting gets it
+    private void selectNewXID(Stripe stripe, long uid) {
+        stripe.u2x.remove(uid); // remove the relationship which is uid is acquired by xid
+        Deque<Waiter> waiters = stripe.wait.get(uid); // get candidates queue
+        Waiter waiter = null;
+        while (waiters != null && !waiters.isEmpty()) {
+            Waiter candidate = waiters.pollFirst();
+            if (candidate.claim()) {
+                waiter = candidate;
                 break;
             }
         }
-        if (list.size() == 0) wait.remove(uid);
-    }
+        if (waiters != null && waiters.isEmpty()) stripe.wait.remove(uid);
+
+        graphLock.lock();
+        try {
+            if (waiter == null) {
+                waitedU2x.remove(uid);
+                return;
+            }
+            waitU.remove(waiter.xid);
+            if (waiters.isEmpty()) waitedU2x.remove(uid);
+            else waitedU2x.put(uid, waiter.xid);
+        } finally {
+            graphLock.unlock();
+        }
 
-    private void putIntoList(Map<Long, List<Long>> map, long key, long value) {
-        map.computeIfAbsent(key, k -> new ArrayList<>()).add(0, value);
+        // assign uid this xid
+        stripe.u2x.put(uid, waiter.xid);
+        hold(waiter.xid, uid);
+        waitTime.record(System.nanoTime() - waiter.since);
+        waiter.grant();
     }
 
-    private boolean isInList(Map<Long, List<Long>> x2u, long xid, long uid) {
-        return x2u.getOrDefault(xid, List.of()).stream().anyMatch(e -> e == uid);
+    // chain uid to the uids of xid, the lock of the stripe of uid is held
+    private void hold(long xid, long uid) {
+        Holding holding = holding(xid);
+        holding.lock.lock();
+        try {
+            long last = holding.last.put(xid, uid);
+            if (last != LongLongMap.NONE) holding.prev.put(uid, last);
+            long count = holding.count.get(xid);
+            holding.count.put(xid, count == LongLongMap.NONE ? 1 : count + 1);
+        } finally {
+            holding.lock.unlock();
+        }
     }
 
+    // take all uids of xid out of its holding, their stripes aren't locked
+    private long[] release(long xid) {
+        Holding holding = holding(xid);
+        holding.lock.lock();
+        try {
+            long count = holding.count.remove(xid);
+            if (count == LongLongMap.NONE) return NO_UIDS;
+            long[] uids = new long[(int) count];
+            long uid = holding.last.remove(xid);
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = uid;
+                uid = holding.prev.remove(uid);
+            }
+            return uids;
+        } finally {
+            holding.lock.unlock();
+        }
+    }
 
-    private Map<Long, Integer> xidStamp;
-    private int stamp;
+    /**
+     * follow the chain of the wait-for graph from the holder of the uid
+     * xid is going to wait for, xid waiting closes a cycle if the chain
+     * reaches it
+     */
+    private boolean hasDeadLock(long xid, long holder) {
+        long x = holder;
+        while (x != xid) {
+            long uid = waitU.get(x); // what uid that this xid is waiting for
+            if (uid == LongLongMap.NONE) return false;
+            x = waitedU2x.get(uid); // what xid is holding this uid
+            if (x == LongLongMap.NONE) return false;
+        }
+        return true;
+    }
 
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();
-        stamp = 1;
-        // iterate x2u
-        for (long xid : x2u.keySet()) {
-            Integer s = xidStamp.get(xid);
-            if (s != null && s > 0) continue;
-            stamp++;
-            if(dfs(xid)) {
-                return true;
-            }
+    private void runDetector(long detectInterval) {
+        while (!closed) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(detectInterval));
+            if (!closed) detect();
         }
-        return false;
     }
 
     /**
-     *  see what uid that the xid is waiting for, and
-     *  check if another xid holding the uid is waiting
-     *  the uid acquired by the xid
+     * look for the cycles of a copy of the wait-for graph and wake up a
+     * victim of each, the graph is copied under its lock and searched
+     * without it. a cycle can only be broken by a waiter giving up, so
+     * the cycles of the copy are still there unless a waiter timed out
+     * return the number of victims
      */
-    private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);
-        if(stp != null && stp == stamp) {
-            return true;
+    int detect() {
+        LongLongMap waitU;
+        LongLongMap waitedU2x;
+        graphLock.lock();
+        try {
+            waitU = this.waitU.copy();
+            waitedU2x = this.waitedU2x.copy();
+        } finally {
+            graphLock.unlock();
         }
-        if(stp != null && stp < stamp) {
+
+        // every xid waits for at most one other, so following the edges from
+        // each xid finds every cycle, xids are marked with the walk reaching them
+        LongLongMap mark = new LongLongMap(waitU.size());
+        long walk = 0;
+        int found = 0;
+        for (long start : waitU.keys()) {
+            if (mark.containsKey(start)) continue;
+            walk++;
+            long x = start;
+            while (x != LongLongMap.NONE && !mark.containsKey(x)) {
+                mark.put(x, walk);
+                long uid = waitU.get(x);
+                x = uid == LongLongMap.NONE ? LongLongMap.NONE : waitedU2x.get(uid);
+            }
+            if (x == LongLongMap.NONE || mark.get(x) != walk) continue;
+
+            deadlocks.increment();
+            long victim = chooseVictim(x, waitU, waitedU2x);
+            if (wakeVictim(victim, waitU.get(victim))) {
+                victims.increment();
+                found++;
+            }
+        }
+        return found;
+    }
+
+    // the xid in the cycle holding the fewest uids, the youngest one of them
+    private long chooseVictim(long first, LongLongMap waitU, LongLongMap waitedU2x) {
+        long victim = first;
+        int cost = cost(first);
+        for (long x = waitedU2x.get(waitU.get(first)); x != first; x = waitedU2x.get(waitU.get(x))) {
+            int c = cost(x);
+            if (c < cost || (c == cost && x > victim)) {
+                victim = x;
+                cost = c;
+            }
+        }
+        return victim;
+    }
+
+    // the number of uids the xid updated or deleted, it is what aborting it throws away
+    private int cost(long xid) {
+        Holding holding = holding(xid);
+        holding.lock.lock();
+        try {
+            long count = holding.count.get(xid);
+            return count == LongLongMap.NONE ? 0 : (int) count;
+        } finally {
+            holding.lock.unlock();
+        }
+    }
+
+    private boolean wakeVictim(long xid, long uid) {
+        Stripe stripe = stripe(uid);
+        stripe.lock.lock();
+        try {
+            Deque<Waiter> waiters = stripe.wait.get(uid);
+            if (waiters == null) return false;
+            for (Waiter waiter : waiters) {
+                if (waiter.xid != xid) continue;
+                if (!waiter.cancel(Waiter.VICTIM)) return false;
+                waiter.grant();
+                return true;
+            }
             return false;
+        } finally {
+            stripe.lock.unlock();
         }
-        xidStamp.put(xid, stamp);
+    }
+
+    // stop the detector
+    public void close() {
+        closed = true;
+        if (detector != null) LockSupport.unpark(detector);
+    }
+
+    // the number of times a transaction had to wait for a uid
+    public long getWaitCount() {
+        return waits.sum();
+    }
+
+    // the time transactions waited until uids were granted
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    public long getDeadlockCount() {
+        return deadlocks.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
 
-        Long uid = waitU.get(xid); // what uid that this xid is waiting for
-        if(uid == null) return false;
-        Long x = u2x.get(uid); // what xid is holding this uid
-        assert x != null;
-        return dfs(x);
+    // the number of transactions woken up to break deadlocks by the detector
+    public long getVictimCount() {
+        return victims.sum();
     }
 }
@@ -0,0 +1,42 @@
+package com.northeastern.edu.simpledb.backend.vm;
+
+import java.util.Arrays;
+
+/**
+ * Snapshot
+ * the transactions in progress when a repeatable read transaction begins,
+ * xids before `xmin` are finished, xids from `xmax` on are in progress,
+ * and the xids in between are looked up in the sorted `xids`
+ *
+ * a snapshot is shared by the transactions beginning until a transaction
+ * ends, the transactions begun meanwhile have xids from `xmax` on and
+ * none of them has ended, so they are still in progress
+ */
+public class Snapshot {
+
+    // the smallest xid in progress
+    final long xmin;
+
+    // the first xid not begun when the snapshot was taken
+    final long xmax;
+
+    // xids in progress in ascending order
+    private final long[] xids;
+
+    // the number of ended transactions when the snapshot was taken
+    final long generation;
+
+    Snapshot(long[] xids, long xmax, long generation) {
+        Arrays.sort(xids);
+        this.xids = xids;
+        this.xmax = xmax;
+        this.xmin = xids.length == 0 ? xmax : xids[0];
+        this.generation = generation;
+    }
+
+    public boolean contains(long xid) {
+        if (xid < xmin) return false;
+        if (xid >= xmax) return true;
+        return Arrays.binarySearch(xids, xid) >= 0;
+    }
+}
@@ -9,6 +9,7 @@ import com.northeastern.edu.simpledb.common.Error;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -23,14 +24,34 @@ public class VersionManager extends AbstractCache<Entry> implements VersionManag
     Lock lock;
     LockTable lt;
 
+    // the xids before it are registered in `activeTransaction`
+    private volatile long registered;
+
+    // the number of ended transactions, a snapshot taken at the same generation can be shared
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile Snapshot latest;
+
+    // how many times the detector runs in a lock wait timeout
+    private static final long DETECTS_PER_WAIT = 4;
+
     public VersionManager(TransactionManager tm, DataManger dm) {
+        this(tm, dm, 0);
+    }
+
+    /**
+     * a version manager whose transactions wait for a lock up to `lockWait`
+     * milliseconds, deadlocks are broken by a detector thread then,
+     * deadlocks are detected on every wait if it is 0
+     */
+    public VersionManager(TransactionManager tm, DataManger dm, long lockWait) {
         super(0);
         this.tm = tm;
         this.dm = dm;
         activeTransaction = new ConcurrentHashMap<>();
-        activeTransaction.put(SUPER_XID, Transaction.newTransaction(SUPER_XID, 0, null));
+        activeTransaction.put(SUPER_XID, Transaction.newTransaction(SUPER_XID, 0));
         this.lock = new ReentrantLock();
-        this.lt = new LockTable();
+        this.lt = new LockTable(lockWait, Math.max(1, lockWait / DETECTS_PER_WAIT));
     }
 
     @Override
@@ -88,21 +109,17 @@ public class VersionManager extends AbstractCache<Entry> implements VersionManag
                 return false;
             }
 
-            Lock l = null;
             try {
-                l = lt.add(xid, uid); // try to delete it
+                LockTable.Waiter waiter = lt.add(xid, uid); // try to delete it
+                if (waiter != null) lt.await(waiter);
             } catch (Exception e) {
-                transaction.err = Error.ConcurrentUpdateException;
+                // deadlock, lock wait timeout or chosen as a victim, the client is told which one
+                transaction.err = e;
                 internAbort(xid, true);
                 transaction.autoAborted = true;
                 throw transaction.err;
             }
 
-            if (l != null) {
-                l.lock();
-                l.unlock();
-            }
-
             if (entry.getXmax() == xid) { // has been deleted
                 return false;
             }
@@ -127,33 +144,60 @@ public class VersionManager extends AbstractCache<Entry> implements VersionManag
      * @param autoAborted: if it happens by accident, autoAborted is true
      */
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
         Transaction transaction = activeTransaction.get(xid);
-        if (!autoAborted) activeTransaction.remove(xid);
-        lock.unlock();
 
         if (!transaction.autoAborted) {
-            lt.remove(xid);
             tm.abort(xid);
+            lt.remove(xid);
         }
+        if (!autoAborted) end(xid);
+    }
+
+    // unregister an ended transaction, the snapshots taken before can't be shared any more
+    private void end(long xid) {
+        activeTransaction.remove(xid);
+        generation.incrementAndGet();
+    }
+
+    /**
+     * the snapshot of the transactions in progress, the latest snapshot
+     * is shared if no transaction ended since it was taken
+     */
+    private Snapshot snapshot() {
+        long generation = this.generation.get();
+        Snapshot latest = this.latest;
+        if (latest != null && latest.generation == generation) return latest;
+
+        long xmax = registered;
+        long[] xids = activeTransaction.keySet().stream()
+                .mapToLong(Long::longValue)
+                .filter(xid -> xid != SUPER_XID && xid < xmax)
+                .toArray();
+        Snapshot snapshot = new Snapshot(xids, xmax, generation);
+        this.latest = snapshot;
+        return snapshot;
     }
 
     /**
      * start a transaction
      * when new a transaction, do a snapshot of active transaction
-     * for the validation of visibility
+     * for the validation of visibility, the lock only keeps xids
+     * registered in order, the snapshot is taken outside of it
      */
     @Override
     public long begin(int level) {
+        Transaction transaction;
         lock.lock();
         try {
             long xid = tm.begin();
-            Transaction transaction = Transaction.newTransaction(xid, level, activeTransaction);
+            transaction = Transaction.newTransaction(xid, level);
             activeTransaction.put(xid, transaction);
-            return xid;
+            registered = xid + 1;
         } finally {
             lock.unlock();
         }
+        if (level != 0) transaction.snapshot = snapshot();
+        return transaction.xid;
     }
 
     @Override
@@ -168,10 +212,12 @@ public class VersionManager extends AbstractCache<Entry> implements VersionManag
             Panic.panic(e);
         }
 
-        activeTransaction.remove(xid);
-
-        lt.remove(xid);
+        // the logs of the transaction must be durable before it is committed
+        dm.flushLog(xid);
+        // it stays in progress for new snapshots until it is committed, and holds its locks until then
         tm.commit(xid);
+        end(xid);
+        lt.remove(xid);
     }
 
     @Override
@@ -179,6 +225,13 @@ public class VersionManager extends AbstractCache<Entry> implements VersionManag
         internAbort(xid, false);
     }
 
+    // stop the deadlock detector, then drop the cached entries
+    @Override
+    public void close() {
+        lt.close();
+        super.close();
+    }
+
     @Override
     protected Entry getForCache(long uid) throws Exception {
         Entry entry = Entry.loadEntry(this, uid);
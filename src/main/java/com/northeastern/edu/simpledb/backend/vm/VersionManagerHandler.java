@@ -11,6 +11,7 @@ public interface VersionManagerHandler {
     long begin(int level);
     void commit(long xid) throws Exception;
     void abort(long xid);
+    void close();
 
     static VersionManagerHandler newVersionManager(TransactionManager tm, DataManger dm) {
         return new VersionManager(tm, dm);
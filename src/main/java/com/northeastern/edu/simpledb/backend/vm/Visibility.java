@@ -2,6 +2,10 @@ package com.northeastern.edu.simpledb.backend.vm;
 
 import com.northeastern.edu.simpledb.backend.tm.TransactionManager;
 
+/**
+ * the states of XMIN and XMAX are read through the hint bits of the entry,
+ * the transaction manager is asked only until the hints are set
+ */
 public class Visibility {
 
     /**
@@ -12,7 +16,7 @@ public class Visibility {
     public static boolean isVersionSkip(TransactionManager tm, Transaction t, Entry e) {
         long xmax = e.getXmax();
         if (t.level == 0) return false;
-        else return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapShot(xmax));
+        else return e.isXmaxCommitted(tm) && (xmax > t.xid || t.isInSnapShot(xmax));
     }
 
     // determine if record(e) is visible to transaction(t) based on isolation level
@@ -27,9 +31,9 @@ public class Visibility {
         long xmax = e.getXmax();
         if (xmin == xid && xmax == 0) return true; // e had been created by the current transaction and wasn't deleted
 
-        if (tm.isCommitted(xmin)) {
+        if (e.isXminCommitted(tm)) {
             if (xmax == 0) return true; // e had been committed and wasn't deleted
-            return xmax != xid && !tm.isCommitted(xmax); // e had been deleted by other transaction but wasn't committed
+            return xmax != xid && !e.isXmaxCommitted(tm); // e had been deleted by other transaction but wasn't committed
         }
         return false;
     }
@@ -40,10 +44,10 @@ public class Visibility {
         long xmax = e.getXmax();
         if (xmin == xid && xmax == 0) return true; // e had been created by the current transaction and wasn't deleted
 
-        if (tm.isCommitted(xmin) && xmin < xid && !t.isInSnapShot(xmin)) { // e was committed before when the current transaction created
+        if (xmin < xid && e.isXminCommitted(tm) && !t.isInSnapShot(xmin)) { // e was committed before when the current transaction created
             if (xmax == 0) return true; // not deleted so far
             if (xmax != xid) {
-                return !tm.isCommitted(xmax) || xmax > xid || t.isInSnapShot(xmax); // e was deleted by the transaction created after the current transaction
+                return xmax > xid || !e.isXmaxCommitted(tm) || t.isInSnapShot(xmax); // e was deleted by the transaction created after the current transaction
             }
         }
         return false;
@@ -19,9 +19,13 @@ public class Error {
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
 
+    // im
+    public static Exception InvalidFanoutException = new RuntimeException("Fanout is invalid!");
+
     // vm
     public static Exception NullEntryException = new RuntimeException("Entry is null!");
     public static Exception DeadLockException = new RuntimeException("Deadlock detected!");
+    public static Exception LockTimeoutException = new RuntimeException("Lock wait timeout!");
 
     // parser
     public static Exception InvalidCommandException = new RuntimeException("Command is invalid!");
@@ -41,4 +45,5 @@ public class Error {
     public static Exception NestedTransactionException = new RuntimeException("Nested transaction not supported!");
     public static Exception NoTransactionException = new RuntimeException("Not in transaction!");
     public static Exception InvalidMemException = new RuntimeException("Memory is invalid!");
+    public static Exception InvalidLockWaitException = new RuntimeException("Lock wait is invalid!");
 }
@@ -2,8 +2,12 @@ package com.northeastern.edu.simpledb.backend.common;
 
 import com.northeastern.edu.simpledb.common.Error;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -140,6 +144,223 @@ public class AbstractCacheTest {
         executorService.shutdown();
         executorService.awaitTermination(2, TimeUnit.SECONDS);
     }
+
+    @Test
+    void testRetainOnRelease_expectedUnpinnedEntriesEvictedOnlyWhenFull() throws Exception {
+        RetainingCache cache = new RetainingCache(2);
+
+        cache.get(1L);
+        cache.release(1L);
+        cache.get(1L);
+        cache.release(1L);
+        // still resident after release, so the second get is a hit
+        assertEquals(1, cache.loads.get(1L).intValue());
+
+        cache.get(2L);
+        cache.release(2L);
+        cache.get(3L);
+        cache.release(3L);
+        // one of the unpinned entries made room for key 3
+        assertEquals(1, cache.evicted.size());
+        assertEquals(3, cache.loads.values().stream().mapToInt(Integer::intValue).sum());
+
+        cache.get(3L);
+        cache.get(cache.evicted.get(0) == 1L ? 2L : 1L);
+        // every frame is pinned
+        assertThrows(Error.CacheFullException.getClass(), () -> cache.get(4L));
+    }
+
+    @Test
+    void testConcurrentGetOfOneKey_expectedLoadedOnce() throws Exception {
+        BlockingCache cache = new BlockingCache(false, 4);
+        cache.blockLoad = new CountDownLatch(1);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(THREAD_COUNT);
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            futures.add(executorService.submit(() -> cache.get(1L)));
+        }
+        // every thread but the loader waits on the load future of the key
+        assertTrue(cache.loading.await(2, TimeUnit.SECONDS));
+        cache.blockLoad.countDown();
+        for (Future<Long> future : futures) {
+            assertEquals(1L, future.get(2, TimeUnit.SECONDS).longValue());
+        }
+        assertEquals(1, cache.loads.get(1L).intValue());
+
+        executorService.shutdown();
+        executorService.awaitTermination(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testSlowLoad_expectedOtherKeysOfSegmentNotBlocked() throws Exception {
+        // a single segment, so both keys share the lock
+        BlockingCache cache = new BlockingCache(false, 1);
+        CountDownLatch blockLoad = new CountDownLatch(1);
+        cache.blockLoad = blockLoad;
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future<Long> slow = executorService.submit(() -> cache.get(1L));
+        assertTrue(cache.loading.await(2, TimeUnit.SECONDS));
+
+        cache.blockLoad = null;
+        assertEquals(2L, cache.get(2L).longValue());
+        assertFalse(slow.isDone());
+
+        blockLoad.countDown();
+        assertEquals(1L, slow.get(2, TimeUnit.SECONDS).longValue());
+        executorService.shutdown();
+        executorService.awaitTermination(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testFailedLoad_expectedWaitersRetry() throws Exception {
+        BlockingCache cache = new BlockingCache(false, 4);
+        cache.blockLoad = new CountDownLatch(1);
+        cache.failures.set(1);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        Future<Long> first = executorService.submit(() -> cache.get(1L));
+        assertTrue(cache.loading.await(2, TimeUnit.SECONDS));
+        Future<Long> second = executorService.submit(() -> cache.get(1L));
+        cache.blockLoad.countDown();
+
+        // one of them fails with the loader, the other one loads the key again
+        int failed = 0;
+        for (Future<Long> future : List.of(first, second)) {
+            try {
+                assertEquals(1L, future.get(2, TimeUnit.SECONDS).longValue());
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        assertEquals(1, failed);
+        assertEquals(2, cache.loads.get(1L).intValue());
+
+        executorService.shutdown();
+        executorService.awaitTermination(2, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void testSlowWriteBack_expectedSegmentNotBlockedAndKeyReloadedAfterIt() throws Exception {
+        BlockingCache cache = new BlockingCache(true, 1);
+        cache.get(1L);
+        cache.release(1L);
+        cache.get(2L);
+        cache.release(2L);
+        cache.blockWrite = new CountDownLatch(1);
+
+        // the cache is full, key 3 evicts key 1 and its write-back blocks
+        ExecutorService executorService = Executors.newFixedThreadPool(3);
+        Future<Long> evicting = executorService.submit(() -> cache.get(3L));
+        assertTrue(cache.writing.await(2, TimeUnit.SECONDS));
+
+        // the segment isn't locked during the write-back
+        Future<Long> hit = executorService.submit(() -> cache.get(2L));
+        assertEquals(2L, hit.get(2, TimeUnit.SECONDS).longValue());
+        cache.release(2L);
+
+        // key 1 isn't loaded again before it is written
+        Future<Long> reloading = executorService.submit(() -> cache.get(1L));
+        TimeUnit.MILLISECONDS.sleep(50);
+        assertFalse(reloading.isDone());
+        assertEquals(1, cache.loads.get(1L).intValue());
+
+        cache.blockWrite.countDown();
+        assertEquals(3L, evicting.get(2, TimeUnit.SECONDS).longValue());
+        assertEquals(1L, reloading.get(2, TimeUnit.SECONDS).longValue());
+        assertEquals(2, cache.loads.get(1L).intValue());
+        assertEquals(List.of(1L), cache.written.subList(0, 1));
+
+        executorService.shutdown();
+        executorService.awaitTermination(2, TimeUnit.SECONDS);
+    }
+}
+
+/**
+ * a cache whose loads and write-backs can be held back by latches
+ * `loading` and `writing` are counted down once one of them started
+ */
+class BlockingCache extends AbstractCache<Long> {
+
+    final Map<Long, Integer> loads = new ConcurrentHashMap<>();
+
+    final List<Long> written = new CopyOnWriteArrayList<>();
+
+    final CountDownLatch loading = new CountDownLatch(1);
+
+    final CountDownLatch writing = new CountDownLatch(1);
+
+    final AtomicInteger failures = new AtomicInteger();
+
+    volatile CountDownLatch blockLoad;
+
+    volatile CountDownLatch blockWrite;
+
+    private final boolean retain;
+
+    BlockingCache(boolean retain, int shardCount) {
+        super(2, shardCount);
+        this.retain = retain;
+    }
+
+    @Override
+    protected boolean retainOnRelease() {
+        return retain;
+    }
+
+    @Override
+    protected Long getForCache(long key) throws Exception {
+        loads.merge(key, 1, Integer::sum);
+        CountDownLatch block = blockLoad;
+        if (block != null) {
+            loading.countDown();
+            block.await();
+        }
+        if (failures.getAndDecrement() > 0) throw new IOException("load failed");
+        return key;
+    }
+
+    @Override
+    protected void releaseForCache(Long obj) {
+        CountDownLatch block = blockWrite;
+        if (block != null) {
+            writing.countDown();
+            try {
+                block.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        written.add(obj);
+    }
+}
+
+class RetainingCache extends AbstractCache<Long> {
+
+    final Map<Long, Integer> loads = new ConcurrentHashMap<>();
+
+    final List<Long> evicted = new CopyOnWriteArrayList<>();
+
+    public RetainingCache(int maxResource) {
+        super(maxResource, 2);
+    }
+
+    @Override
+    protected boolean retainOnRelease() {
+        return true;
+    }
+
+    @Override
+    protected Long getForCache(long key) {
+        loads.merge(key, 1, Integer::sum);
+        return key;
+    }
+
+    @Override
+    protected void releaseForCache(Long obj) {
+        evicted.add(obj);
+    }
 }
 
 class MyAbstractCache extends AbstractCache<Data> {
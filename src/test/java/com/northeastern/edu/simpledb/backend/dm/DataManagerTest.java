@@ -5,6 +5,7 @@ import com.northeastern.edu.simpledb.backend.dm.cache.PageCache;
 import com.northeastern.edu.simpledb.backend.dm.dataItem.DataItem;
 import com.northeastern.edu.simpledb.backend.tm.TransactionManager;
 import com.northeastern.edu.simpledb.backend.utils.Panic;
+import com.northeastern.edu.simpledb.backend.utils.Parser;
 import com.northeastern.edu.simpledb.backend.utils.RandomUtil;
 import org.checkerframework.checker.units.qual.C;
 import org.junit.jupiter.api.AfterAll;
@@ -23,6 +24,7 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import static com.northeastern.edu.simpledb.backend.dm.cache.PageCache.DB_SUFFIX;
 import static com.northeastern.edu.simpledb.backend.dm.logger.Logger.LOG_SUFFIX;
+import static com.northeastern.edu.simpledb.backend.dm.pageIndex.FreeSpaceMap.FSM_SUFFIX;
 import static com.northeastern.edu.simpledb.backend.tm.TransactionManager.XID_SUFFIX;
 
 public class DataManagerTest {
@@ -63,6 +65,7 @@ public class DataManagerTest {
         new File("dm-test" + LOG_SUFFIX).delete();
         new File("dm-test" + DB_SUFFIX).delete();
         new File("dm-test" + XID_SUFFIX).delete();
+        new File("dm-test" + FSM_SUFFIX).delete();
     }
 
     @Test
@@ -107,7 +110,7 @@ public class DataManagerTest {
 
                     dataItem.rLock();
                     SubArray sa = dataItem.data();
-                    byte[] bytes = Arrays.copyOfRange(sa.raw, sa.start, sa.end);
+                    byte[] bytes = Parser.copyOfRange(sa.raw, sa.start, sa.end);
                     Assertions.assertTrue(map.contains(new String(bytes)));
                     dataItem.rUnLock();
                 }
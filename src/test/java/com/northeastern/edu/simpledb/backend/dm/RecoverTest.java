@@ -4,7 +4,10 @@ import com.northeastern.edu.simpledb.backend.common.SubArray;
 import com.northeastern.edu.simpledb.backend.dm.cache.PageCache;
 import com.northeastern.edu.simpledb.backend.dm.dataItem.DataItem;
 import com.northeastern.edu.simpledb.backend.dm.logger.Logger;
+import com.northeastern.edu.simpledb.backend.dm.page.L1Page;
+import com.northeastern.edu.simpledb.backend.dm.page.Page;
 import com.northeastern.edu.simpledb.backend.tm.TransactionManager;
+import com.northeastern.edu.simpledb.backend.utils.Parser;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
@@ -13,10 +16,10 @@ import org.junit.jupiter.api.Test;
 import java.io.File;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 
 import static com.northeastern.edu.simpledb.backend.dm.cache.PageCache.DB_SUFFIX;
 import static com.northeastern.edu.simpledb.backend.dm.logger.Logger.LOG_SUFFIX;
+import static com.northeastern.edu.simpledb.backend.dm.pageIndex.FreeSpaceMap.FSM_SUFFIX;
 import static com.northeastern.edu.simpledb.backend.tm.TransactionManager.XID_SUFFIX;
 
 public class RecoverTest {
@@ -38,6 +41,7 @@ public class RecoverTest {
         new File("recover-test" + LOG_SUFFIX).delete();
         new File("recover-test" + DB_SUFFIX).delete();
         new File("recover-test" + XID_SUFFIX).delete();
+        new File("recover-test" + FSM_SUFFIX).delete();
     }
 
     @Test
@@ -49,12 +53,14 @@ public class RecoverTest {
             dataItem0.rLock();
             SubArray data0 = dataItem0.data();
             dataItem0.rUnLock();
-            byte[] bytes = Arrays.copyOfRange(data0.raw, data0.start, data0.end);
+            byte[] bytes = Parser.copyOfRange(data0.raw, data0.start, data0.end);
             String actualStr = new String(bytes);
             Assertions.assertEquals("hello db!", actualStr);
 
             Field loggerFiled = dm.getClass().getDeclaredField("logger");
             loggerFiled.setAccessible(true);
+            // the log buffer reaches the log file before the crash
+            ((Logger) loggerFiled.get(dm)).flush();
             Logger reloadedLog = Logger.open("recover-test");
             loggerFiled.set(dm, reloadedLog);
 
@@ -70,4 +76,86 @@ public class RecoverTest {
             throw new RuntimeException(e);
         }
     }
+
+    @Test
+    void testRecoverFromCheckpoint_expectedCommittedDataKeptAndActiveDataInvalid() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("checkpoint-test");
+        DataManger dm0 = DataMangerHandler.create("checkpoint-test", PageCache.PAGE_SIZE * 10, tm0);
+        try {
+            long committed = tm0.begin();
+            long committedUid = dm0.insert(committed, "committed".getBytes(StandardCharsets.UTF_8));
+            tm0.commit(committed);
+
+            dm0.checkpoint();
+            Page firstPage = dm0.pageCache.getPage(1);
+            Assertions.assertNotEquals(0, L1Page.getCheckpoint(firstPage));
+            firstPage.release();
+            Assertions.assertEquals(0, dm0.pageCache.getDirtyPageCount());
+
+            long active = tm0.begin();
+            long activeUid = dm0.insert(active, "active".getBytes(StandardCharsets.UTF_8));
+
+            dm0.logger.flush();
+            Logger reloadedLog = Logger.open("checkpoint-test");
+            dm0.logger = reloadedLog;
+            Recover.recover(tm0, reloadedLog, dm0.pageCache);
+
+            DataItem dataItem = dm0.read(committedUid);
+            Assertions.assertNotNull(dataItem);
+            SubArray data = dataItem.data();
+            Assertions.assertEquals("committed", new String(Parser.copyOfRange(data.raw, data.start, data.end)));
+            dataItem.release();
+            Assertions.assertNull(dm0.read(activeUid));
+        } finally {
+            new File("checkpoint-test" + LOG_SUFFIX).delete();
+            new File("checkpoint-test" + DB_SUFFIX).delete();
+            new File("checkpoint-test" + XID_SUFFIX).delete();
+            new File("checkpoint-test" + FSM_SUFFIX).delete();
+        }
+    }
+
+    @Test
+    void testRecoverDeltaLog_expectedCommittedRangeRedoneAndActiveRangeUndone() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("delta-test");
+        DataManger dm0 = DataMangerHandler.create("delta-test", PageCache.PAGE_SIZE * 10, tm0);
+        try {
+            long inserter = tm0.begin();
+            long uid = dm0.insert(inserter, "hello delta world".getBytes(StandardCharsets.UTF_8));
+            tm0.commit(inserter);
+
+            // the committed transaction changes the head, the active one changes the tail
+            long committed = tm0.begin();
+            DataItem dataItem = dm0.read(uid);
+            dataItem.before();
+            SubArray data = dataItem.data();
+            Parser.put(data.raw, data.start, "HELLO".getBytes(StandardCharsets.UTF_8));
+            Assertions.assertTrue(Recover.updateLog(committed, dataItem).length < 2 * (data.end - data.start));
+            dataItem.after(committed);
+            tm0.commit(committed);
+
+            long active = tm0.begin();
+            dataItem.before();
+            Parser.put(data.raw, data.end - 5, "WORLD".getBytes(StandardCharsets.UTF_8));
+            dataItem.after(active);
+
+            // lose the page content, recovery rebuilds it from the log
+            Parser.put(data.raw, data.start, new byte[data.end - data.start]);
+            dataItem.release();
+
+            dm0.logger.flush();
+            Logger reloadedLog = Logger.open("delta-test");
+            dm0.logger = reloadedLog;
+            Recover.recover(tm0, reloadedLog, dm0.pageCache);
+
+            dataItem = dm0.read(uid);
+            data = dataItem.data();
+            Assertions.assertEquals("HELLO delta world", new String(Parser.copyOfRange(data.raw, data.start, data.end)));
+            dataItem.release();
+        } finally {
+            new File("delta-test" + LOG_SUFFIX).delete();
+            new File("delta-test" + DB_SUFFIX).delete();
+            new File("delta-test" + XID_SUFFIX).delete();
+            new File("delta-test" + FSM_SUFFIX).delete();
+        }
+    }
 }
@@ -0,0 +1,159 @@
+package com.northeastern.edu.simpledb.backend.dm.cache;
+
+import com.northeastern.edu.simpledb.backend.dm.page.Page;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.northeastern.edu.simpledb.backend.dm.cache.PageCache.DB_SUFFIX;
+import static com.northeastern.edu.simpledb.backend.dm.cache.PageCacheHandler.PAGE_SIZE;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PageCacheTest {
+
+    private static final String PATH = "page-cache-test";
+
+    private static final int PAGE_COUNT = 64;
+
+    private static final int THREAD_COUNT = 8;
+
+    @AfterEach
+    void cleanTestEnv() {
+        new File(PATH + DB_SUFFIX).delete();
+    }
+
+    @Test
+    void testConcurrentMiss_expectedEveryThreadReadsItsOwnPage() throws Exception {
+        PageCache pageCache = PageCacheHandler.create(PATH, (long) PAGE_SIZE * 16);
+        for (int i = 1; i <= PAGE_COUNT; i++) {
+            byte[] raw = new byte[PAGE_SIZE];
+            raw[0] = (byte) i;
+            raw[PAGE_SIZE - 1] = (byte) i;
+            pageCache.newPage(raw);
+        }
+        pageCache.close();
+
+        PageCache reopened = PageCacheHandler.open(PATH, (long) PAGE_SIZE * 16);
+        ExecutorService executorService = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch countDownLatch = new CountDownLatch(THREAD_COUNT);
+        Future<?>[] futures = new Future[THREAD_COUNT];
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int first = t + 1;
+            futures[t] = executorService.submit(() -> {
+                countDownLatch.countDown();
+                countDownLatch.await();
+                for (int i = first; i <= PAGE_COUNT; i += THREAD_COUNT) {
+                    Page page = reopened.getPage(i);
+                    assertEquals((byte) i, page.getData().get(0));
+                    assertEquals((byte) i, page.getData().get(PAGE_SIZE - 1));
+                    page.release();
+                }
+                return null;
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executorService.shutdown();
+
+        assertEquals(PAGE_COUNT, reopened.getReadLatency().count());
+        assertEquals(0, reopened.getWriteLatency().count());
+        reopened.close();
+        // every frame went back to the arena
+        assertEquals(16, reopened.getFreeFrameCount());
+    }
+
+    @Test
+    void testSequentialScan_expectedPagesReadAhead() throws Exception {
+        PageCache pageCache = PageCacheHandler.create(PATH, (long) PAGE_SIZE * 32);
+        for (int i = 1; i <= PAGE_COUNT; i++) {
+            byte[] raw = new byte[PAGE_SIZE];
+            raw[0] = (byte) i;
+            pageCache.newPage(raw);
+        }
+        pageCache.close();
+
+        PageCache reopened = PageCacheHandler.open(PATH, (long) PAGE_SIZE * 32);
+        for (int i = 1; i <= 8; i++) {
+            Page page = reopened.getPage(i);
+            page.release();
+        }
+        for (int i = 0; i < 100 && reopened.getReadAheadPages() < PageReadAhead.READ_AHEAD_WINDOW - 4; i++) {
+            Thread.sleep(10);
+        }
+        // pages 9 to 20 are read ahead, 5 to 8 may be read by the scan itself first
+        assertTrue(reopened.getReadAheadPages() >= PageReadAhead.READ_AHEAD_WINDOW - 4);
+
+        // pages read ahead are served without another read
+        long reads = reopened.getReadLatency().count();
+        Page page = reopened.getPage(9);
+        assertEquals((byte) 9, page.getData().get(0));
+        page.release();
+        assertEquals(reads, reopened.getReadLatency().count());
+        reopened.close();
+    }
+
+    @Test
+    void testWriteBack_skipsPageBeingModified() throws Exception {
+        PageCache pageCache = PageCacheHandler.create(PATH, (long) PAGE_SIZE * 16);
+        pageCache.newPage(new byte[PAGE_SIZE]);
+        Page page = pageCache.getPage(1);
+        page.startModify();
+        page.getData().put(0, (byte) 7);
+        assertEquals(1, pageCache.getDirtyPageCount());
+        // the background writer skips a page being modified
+        assertEquals(0, pageCache.writeDirtyPages(Long.MAX_VALUE, Integer.MAX_VALUE, false));
+        assertTrue(page.isDirty());
+        page.endModify();
+
+        // the background writer may have written it meanwhile
+        pageCache.writeDirtyPages(Long.MAX_VALUE, Integer.MAX_VALUE, false);
+        assertFalse(page.isDirty());
+        assertEquals(0, pageCache.getDirtyPageCount());
+        page.release();
+        pageCache.close();
+    }
+
+    @Test
+    void testMappedPageCache_expectedPagesSurviveReopenAndFileCutAtOnce() throws Exception {
+        // the first segment is read through the mapping, the tail with system calls
+        int pageCount = (int) (MappedPageCache.SEGMENT_SIZE / PAGE_SIZE) + PAGE_COUNT;
+        PageCache pageCache = PageCacheHandler.create(PATH, (long) PAGE_SIZE * 16, true);
+        for (int i = 1; i <= pageCount; i++) {
+            byte[] raw = new byte[PAGE_SIZE];
+            raw[0] = (byte) i;
+            pageCache.newPage(raw);
+        }
+        pageCache.close();
+
+        pageCache = PageCacheHandler.open(PATH, (long) PAGE_SIZE * 16, true);
+        for (int i = 1; i <= pageCount; i++) {
+            Page page = pageCache.getPage(i);
+            assertEquals((byte) i, page.getData().get(0));
+            page.release();
+        }
+        Page page = pageCache.getPage(3);
+        page.startModify();
+        page.getData().put(1, (byte) 42);
+        page.endModify();
+        page.release();
+        pageCache.truncateByPageNumber(pageCount - 1);
+        assertEquals((long) (pageCount - 1) * PAGE_SIZE, new File(PATH + DB_SUFFIX).length());
+        pageCache.close();
+
+        PageCache reopened = PageCacheHandler.open(PATH, (long) PAGE_SIZE * 16, true);
+        assertEquals(pageCount - 1, reopened.getPageNumber());
+        page = reopened.getPage(3);
+        assertEquals(42, page.getData().get(1));
+        page.release();
+        page = reopened.getPage(pageCount - 1);
+        assertEquals((byte) (pageCount - 1), page.getData().get(0));
+        page.release();
+        reopened.close();
+    }
+}
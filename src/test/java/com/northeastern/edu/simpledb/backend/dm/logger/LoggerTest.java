@@ -4,15 +4,23 @@ import com.northeastern.edu.simpledb.backend.dm.logger.Logger;
 import org.junit.jupiter.api.*;
 
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 public class LoggerTest {
 
-    private static final short OF_CHECKSUM = 4;
+    private static final int OF_DATA = 8;
     private static Logger logger;
 
     private static final String LOG_NAME = "bin";
@@ -35,12 +43,13 @@ public class LoggerTest {
 
     @Test
     @Order(1)
-    void testInit_expectedFCPositionEqualsToOffsetCheckSumAfterInit() {
+    void testInit_expectedSizeEqualsToSegmentHeaderAfterInit() {
         try {
             Method initMethod = logger.getClass().getDeclaredMethod("init");
             initMethod.setAccessible(true);
             initMethod.invoke(logger);
-            Assertions.assertEquals(OF_CHECKSUM, logger.getFc().position());
+            Assertions.assertEquals(LogSegment.HEADER_SIZE, logger.size());
+            Assertions.assertEquals(LogSegment.HEADER_SIZE, logger.getFc().size());
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -48,12 +57,15 @@ public class LoggerTest {
 
     @Test
     @Order(2)
-    void testLogOnce_expectedFCPositionEqualsToOffsetCheckSumAfterLog() {
+    void testLogOnce_expectedSizeGrowsByTheLogAfterFlush() {
         String sql = "select * from test";
         byte[] bytes = sql.getBytes(StandardCharsets.UTF_8);
-        logger.log(bytes);
+        long position = logger.log(bytes);
+        Assertions.assertEquals(LogSegment.HEADER_SIZE, position);
+        Assertions.assertEquals(LogSegment.HEADER_SIZE + OF_DATA + bytes.length, logger.size());
+        logger.flush(position);
         try {
-            Assertions.assertEquals(OF_CHECKSUM, logger.getFc().position());
+            Assertions.assertEquals(LogSegment.HEADER_SIZE + OF_DATA + bytes.length, logger.getFc().size());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -81,6 +93,7 @@ public class LoggerTest {
 
         String sql3 = "update from test set b = 3 where a = 1";
         logger.log(sql3.getBytes(StandardCharsets.UTF_8));
+        logger.flush();
 
         logger = Logger.open(LOG_NAME);
 
@@ -102,4 +115,197 @@ public class LoggerTest {
         Assertions.assertEquals(sql3, res3);
     }
 
+    @Test
+    @Order(5)
+    void testConcurrentFlush_expectedLogsDurableWithFewerForces() throws Exception {
+        int threads = 16;
+        int logsPerThread = 50;
+        long forces = logger.getForceCount();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        CountDownLatch countDownLatch = new CountDownLatch(threads);
+        Future<?>[] futures = new Future[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            futures[t] = executorService.submit(() -> {
+                countDownLatch.countDown();
+                countDownLatch.await();
+                for (int i = 0; i < logsPerThread; i++) {
+                    long position = logger.log(("commit " + id + " " + i).getBytes(StandardCharsets.UTF_8));
+                    logger.flush(position);
+                }
+                return null;
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executorService.shutdown();
+
+        // committing threads share fsyncs
+        Assertions.assertTrue(logger.getForceCount() - forces < threads * logsPerThread);
+
+        logger = Logger.open(LOG_NAME);
+        int count = 0;
+        while (logger.next() != null) count++;
+        Assertions.assertEquals(4 + threads * logsPerThread, count);
+    }
+
+    @Test
+    @Order(6)
+    void testSegments_expectedLogsReadAcrossSegmentsAndOldSegmentsRemoved() {
+        String name = "segment-test";
+        Logger segmented = Logger.create(name, 256);
+        long[] positions = new long[40];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = segmented.log(("log " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        segmented.close();
+        try {
+            Logger reopened = Logger.open(name, 256);
+            Assertions.assertTrue(reopened.getSegmentCount() > 1);
+            for (int i = 0; i < positions.length; i++) {
+                Assertions.assertEquals("log " + i, new String(reopened.next()));
+            }
+            Assertions.assertNull(reopened.next());
+
+            // the logs before the 30th one aren't needed any more
+            int segments = reopened.getSegmentCount();
+            Assertions.assertTrue(reopened.removeSegmentsBefore(positions[30]) > 0);
+            Assertions.assertTrue(reopened.getSegmentCount() < segments);
+            reopened.seek(positions[30]);
+            Assertions.assertEquals("log 30", new String(reopened.next()));
+            reopened.close();
+
+            reopened = Logger.open(name, 256);
+            Assertions.assertEquals("log 39", new String(last(reopened)));
+            reopened.close();
+        } finally {
+            for (long sequence : AbstractLogger.segmentSequences(name)) {
+                Logger.segmentFile(name, sequence).delete();
+            }
+        }
+    }
+
+    @Test
+    @Order(7)
+    void testConcurrentLog_expectedEveryLogReadBackAtItsPosition() throws Exception {
+        String name = "buffer-test";
+        int threads = 16;
+        int logsPerThread = 500;
+        Logger buffered = Logger.create(name, 4096);
+        Map<Long, String> logs = new ConcurrentHashMap<>();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        CountDownLatch countDownLatch = new CountDownLatch(threads);
+        Future<?>[] futures = new Future[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            futures[t] = executorService.submit(() -> {
+                countDownLatch.countDown();
+                countDownLatch.await();
+                for (int i = 0; i < logsPerThread; i++) {
+                    String log = "log " + id + " " + i + " " + "x".repeat(i % 97);
+                    Assertions.assertNull(logs.put(buffered.log(log.getBytes(StandardCharsets.UTF_8)), log));
+                }
+                return null;
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executorService.shutdown();
+        buffered.close();
+
+        try {
+            Logger reopened = Logger.open(name, 4096);
+            Assertions.assertTrue(reopened.getSegmentCount() > 1);
+            int count = 0;
+            byte[] log;
+            while ((log = reopened.next()) != null) {
+                Assertions.assertEquals(logs.get(reopened.getLastPosition()), new String(log));
+                count++;
+            }
+            Assertions.assertEquals(threads * logsPerThread, count);
+            reopened.close();
+        } finally {
+            for (long sequence : AbstractLogger.segmentSequences(name)) {
+                Logger.segmentFile(name, sequence).delete();
+            }
+        }
+    }
+
+    @Test
+    @Order(8)
+    void testOpenVersion1Segment_expectedOldLogsReadAndNewLogsInVersion2Segment() throws Exception {
+        String name = "v1-test";
+        byte[] old = "log in v1".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(LogSegment.HEADER_SIZE);
+        header.putInt(LogSegment.MAGIC).putInt(1).putLong(0);
+        header.putInt(LogSegment.headerChecksum(header.array()));
+        ByteBuffer file = ByteBuffer.allocate(LogSegment.HEADER_SIZE + OF_DATA + old.length);
+        file.put(header.array()).putInt(old.length).putInt(Logger.seedChecksum(old, 0, old.length)).put(old);
+        Files.write(Logger.segmentFile(name, 0).toPath(), file.array());
+
+        try {
+            Logger reopened = Logger.open(name);
+            Assertions.assertEquals(2, reopened.getSegmentCount());
+            Assertions.assertEquals("log in v1", new String(reopened.next()));
+            reopened.log("log in v2".getBytes(StandardCharsets.UTF_8));
+            reopened.close();
+
+            reopened = Logger.open(name);
+            Assertions.assertEquals("log in v1", new String(reopened.next()));
+            Assertions.assertEquals("log in v2", new String(reopened.next()));
+            Assertions.assertNull(reopened.next());
+            reopened.close();
+        } finally {
+            for (long sequence : AbstractLogger.segmentSequences(name)) {
+                Logger.segmentFile(name, sequence).delete();
+            }
+        }
+    }
+
+    @Test
+    @Order(9)
+    void testChecksum_expectedCrc32cOfSizeAndData() {
+        // CRC32C of 00 00 00 09 followed by "123456789", CRC32C of "123456789" alone is 0xE3069283
+        byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+        Assertions.assertEquals(0x6934CF6F, Logger.checksum(data, 0, data.length));
+    }
+
+    @Test
+    @Order(10)
+    void testCorruptedLog_expectedRejectedOnOpen() throws Exception {
+        String name = "crc-test";
+        Logger crc = Logger.create(name);
+        crc.log("first log".getBytes(StandardCharsets.UTF_8));
+        long position = crc.log("second log".getBytes(StandardCharsets.UTF_8));
+        crc.close();
+
+        try {
+            // flip one byte of the data of the second log
+            try (RandomAccessFile file = new RandomAccessFile(Logger.segmentFile(name, 0), "rw")) {
+                file.seek(position + OF_DATA + 3);
+                int b = file.read();
+                file.seek(position + OF_DATA + 3);
+                file.write(b ^ 0x01);
+            }
+
+            Logger reopened = Logger.open(name);
+            Assertions.assertEquals("first log", new String(reopened.next()));
+            Assertions.assertNull(reopened.next());
+            reopened.close();
+        } finally {
+            for (long sequence : AbstractLogger.segmentSequences(name)) {
+                Logger.segmentFile(name, sequence).delete();
+            }
+        }
+    }
+
+    private static byte[] last(Logger logger) {
+        byte[] last = null;
+        byte[] log;
+        while ((log = logger.next()) != null) last = log;
+        return last;
+    }
+
 }
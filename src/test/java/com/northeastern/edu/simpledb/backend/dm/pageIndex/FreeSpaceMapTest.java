@@ -0,0 +1,80 @@
+package com.northeastern.edu.simpledb.backend.dm.pageIndex;
+
+import com.northeastern.edu.simpledb.backend.dm.DataManger;
+import com.northeastern.edu.simpledb.backend.dm.DataMangerHandler;
+import com.northeastern.edu.simpledb.backend.dm.cache.PageCache;
+import com.northeastern.edu.simpledb.backend.dm.dataItem.DataItem;
+import com.northeastern.edu.simpledb.backend.tm.TransactionManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.northeastern.edu.simpledb.backend.dm.cache.PageCache.DB_SUFFIX;
+import static com.northeastern.edu.simpledb.backend.dm.logger.Logger.LOG_SUFFIX;
+import static com.northeastern.edu.simpledb.backend.dm.pageIndex.FreeSpaceMap.FSM_SUFFIX;
+import static com.northeastern.edu.simpledb.backend.tm.TransactionManager.SUPER_XID;
+import static com.northeastern.edu.simpledb.backend.tm.TransactionManager.XID_SUFFIX;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FreeSpaceMapTest {
+
+    private static final String TEST_NAME = "fsm-test";
+
+    private static final byte[] VC = {1, 2, 3, 4, 5, 6, 7, 8};
+
+    @AfterEach
+    void cleanTestEnv() {
+        new File(TEST_NAME + LOG_SUFFIX).delete();
+        new File(TEST_NAME + DB_SUFFIX).delete();
+        new File(TEST_NAME + XID_SUFFIX).delete();
+        new File(TEST_NAME + FSM_SUFFIX).delete();
+    }
+
+    @Test
+    void testSaveAndLoad_expectedMapTrustedOnlyForSameVcAndPageNumber() {
+        FreeSpaceMap freeSpaceMap = new FreeSpaceMap(TEST_NAME);
+        short[] freeSpaces = {0, 0, 100, 0, 8000};
+        freeSpaceMap.save(VC, freeSpaces);
+
+        assertArrayEquals(freeSpaces, freeSpaceMap.load(VC, 4));
+        assertNull(freeSpaceMap.load(VC, 5));
+        assertNull(freeSpaceMap.load(new byte[8], 4));
+    }
+
+    @Test
+    void testReopen_expectedInsertionsReuseSavedFreeSpace() throws Exception {
+        TransactionManager tm = TransactionManager.create(TEST_NAME);
+        DataManger dm = DataMangerHandler.create(TEST_NAME, PageCache.PAGE_SIZE * 10, tm);
+        for (int i = 0; i < 3; i++) {
+            dm.insert(SUPER_XID, new byte[5000]);
+        }
+        int pageNumber = pageCache(dm).getPageNumber();
+        dm.close();
+        assertTrue(new File(TEST_NAME + FSM_SUFFIX).exists());
+
+        dm = DataMangerHandler.open(TEST_NAME, PageCache.PAGE_SIZE * 10, tm);
+        Set<Long> pages = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            long uid = dm.insert(SUPER_XID, new byte[2000]);
+            pages.add(uid >>> 32);
+            DataItem dataItem = dm.read(uid);
+            assertEquals(2000, dataItem.data().end - dataItem.data().start);
+            dataItem.release();
+        }
+        // every secondary page has room for one more item, no page is added
+        assertEquals(3, pages.size());
+        assertEquals(pageNumber, pageCache(dm).getPageNumber());
+        dm.close();
+        tm.close();
+    }
+
+    private static PageCache pageCache(DataManger dm) throws Exception {
+        Field pageCacheField = DataManger.class.getDeclaredField("pageCache");
+        pageCacheField.setAccessible(true);
+        return (PageCache) pageCacheField.get(dm);
+    }
+}
@@ -1,5 +1,6 @@
 package com.northeastern.edu.simpledb.backend.im;
 
+import com.northeastern.edu.simpledb.backend.common.SubArray;
 import com.northeastern.edu.simpledb.backend.dm.DataManger;
 import com.northeastern.edu.simpledb.backend.dm.DataMangerHandler;
 import com.northeastern.edu.simpledb.backend.dm.cache.PageCache;
@@ -8,10 +9,22 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.northeastern.edu.simpledb.backend.utils.Parser;
+
+import static com.northeastern.edu.simpledb.backend.tm.TransactionManager.SUPER_XID;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import static com.northeastern.edu.simpledb.backend.dm.cache.PageCache.DB_SUFFIX;
 import static com.northeastern.edu.simpledb.backend.dm.logger.Logger.LOG_SUFFIX;
+import static com.northeastern.edu.simpledb.backend.dm.pageIndex.FreeSpaceMap.FSM_SUFFIX;
 import static com.northeastern.edu.simpledb.backend.tm.TransactionManager.XID_SUFFIX;
 
 public class BPlusTreeTest {
@@ -23,6 +36,7 @@ public class BPlusTreeTest {
         new File(TEST_NAME + LOG_SUFFIX).delete();
         new File(TEST_NAME + DB_SUFFIX).delete();
         new File(TEST_NAME + XID_SUFFIX).delete();
+        new File(TEST_NAME + FSM_SUFFIX).delete();
     }
 
     @Test
@@ -43,6 +57,8 @@ public class BPlusTreeTest {
             assert uids.get(0) == i;
         }
 
+        tree.close();
+        dm.close();
         /*
             tree.insert(16, 16);
             tree.insert(17, 17);
@@ -50,4 +66,244 @@ public class BPlusTreeTest {
             List<Long> uids = tree.search(6);
         */
     }
+
+    // the number of nodes from the root to a leaf
+    private static int height(BPlusTree tree) throws Exception {
+        int height = 0;
+        long nodeUid = tree.rootUid();
+        for (;;) {
+            height++;
+            Node node = Node.loadNode(tree, nodeUid);
+            boolean isLeaf = node.isLeaf();
+            long first = Node.getRawKthSon(node.raw, 0);
+            node.release();
+            if (isLeaf) return height;
+            nodeUid = first;
+        }
+    }
+
+    @Test
+    void testDefaultFanout_shallowTree() throws Exception {
+        DataManger dm = DataMangerHandler.create(TEST_NAME + "-fanout", PageCache.PAGE_SIZE * 512, TransactionManager.create(TEST_NAME + "-fanout"));
+        try {
+            BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+            assertEquals(Node.DEFAULT_BALANCE, tree.balance);
+
+            int lim = 20000;
+            for (int i = 1; i <= lim; i++) {
+                tree.insert(i, i);
+            }
+            for (int i = 1; i <= lim; i += 97) {
+                List<Long> uids = tree.search(i);
+                assertEquals(1, uids.size());
+                assertEquals(i, (long) uids.get(0));
+            }
+            // a small node splits 6 keys, 20000 keys would take 7 levels
+            assertEquals(2, height(tree));
+            tree.close();
+        } finally {
+            dm.close();
+            for (String suffix : new String[]{LOG_SUFFIX, DB_SUFFIX, XID_SUFFIX, FSM_SUFFIX}) {
+                new File(TEST_NAME + "-fanout" + suffix).delete();
+            }
+        }
+    }
+
+    @Test
+    void testFanout_largestAndInvalid() throws Exception {
+        DataManger dm = DataMangerHandler.create(TEST_NAME + "-max", PageCache.PAGE_SIZE * 64, TransactionManager.create(TEST_NAME + "-max"));
+        try {
+            assertThrows(RuntimeException.class, () -> BPlusTree.create(dm, BPlusTree.maxFanout() + 2));
+            assertThrows(RuntimeException.class, () -> BPlusTree.create(dm, 7));
+
+            // nodes filling a page
+            BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, BPlusTree.maxFanout()), dm);
+            for (int i = 1; i <= 2000; i++) {
+                tree.insert(i, i);
+            }
+            for (int i = 1; i <= 2000; i++) {
+                assertEquals(i, (long) tree.search(i).get(0));
+            }
+            tree.close();
+        } finally {
+            dm.close();
+            for (String suffix : new String[]{LOG_SUFFIX, DB_SUFFIX, XID_SUFFIX, FSM_SUFFIX}) {
+                new File(TEST_NAME + "-max" + suffix).delete();
+            }
+        }
+    }
+
+    @Test
+    void testLegacyBoot_smallNodes() throws Exception {
+        DataManger dm = DataMangerHandler.create(TEST_NAME + "-legacy", PageCache.PAGE_SIZE * 64, TransactionManager.create(TEST_NAME + "-legacy"));
+        try {
+            // a tree created before the balance was stored: [RootUid] and nodes of balance 3
+            long rootUid = dm.insert(SUPER_XID, Node.newNilRootRaw(Node.LEGACY_BALANCE));
+            long bootUid = dm.insert(SUPER_XID, Parser.long2Byte(rootUid));
+
+            BPlusTree tree = BPlusTree.load(bootUid, dm);
+            assertEquals(Node.LEGACY_BALANCE, tree.balance);
+            for (int i = 1; i <= 200; i++) {
+                tree.insert(i, i);
+            }
+            for (int i = 1; i <= 200; i++) {
+                assertEquals(i, (long) tree.search(i).get(0));
+            }
+
+            // new nodes are as small as the old ones
+            Node root = Node.loadNode(tree, tree.rootUid());
+            assertEquals(Node.LEGACY_BALANCE, Node.getRawBalance(root.raw));
+            root.release();
+            assertTrue(height(tree) > 2);
+            tree.close();
+        } finally {
+            dm.close();
+            for (String suffix : new String[]{LOG_SUFFIX, DB_SUFFIX, XID_SUFFIX, FSM_SUFFIX}) {
+                new File(TEST_NAME + "-legacy" + suffix).delete();
+            }
+        }
+    }
+
+    // a node of `balance` in a direct buffer like a page frame, holding keys 0, 2, 4...
+    private static SubArray fullNode(int balance) {
+        int size = Node.nodeSize(balance);
+        ByteBuffer frame = ByteBuffer.allocateDirect(size + 16);
+        SubArray raw = new SubArray(frame, 16, 16 + size);
+        int noKeys = balance * 2;
+        Node.setRawIsLeaf(raw, true);
+        Node.setRawNoKeys(raw, noKeys);
+        for (int i = 0; i < noKeys; i++) {
+            Node.setRawKthKey(raw, i * 2L, i);
+            Node.setRawKthSon(raw, i + 1L, i);
+        }
+        return raw;
+    }
+
+    private static int linearSearch(SubArray raw, int noKeys, long key, boolean strict) {
+        int kth = 0;
+        while (kth < noKeys) {
+            long ik = Node.getRawKthKey(raw, kth);
+            if (ik < key || (strict && ik == key)) kth++;
+            else break;
+        }
+        return kth;
+    }
+
+    @Test
+    void testSearchRawKey_sameAsLinearScan() {
+        Random random = new Random(7);
+        for (int balance : new int[]{Node.LEGACY_BALANCE, 32, Node.MAX_BALANCE}) {
+            SubArray raw = fullNode(balance);
+            int noKeys = balance * 2;
+            // duplicated keys in a leaf
+            Node.setRawKthKey(raw, Node.getRawKthKey(raw, 1), 2);
+            for (int i = 0; i < 1000; i++) {
+                long key = random.nextInt(noKeys * 2 + 4) - 2;
+                assertEquals(linearSearch(raw, noKeys, key, false), Node.searchRawKey(raw, noKeys, key, false));
+                assertEquals(linearSearch(raw, noKeys, key, true), Node.searchRawKey(raw, noKeys, key, true));
+            }
+        }
+    }
+
+    @Test
+    void testConcurrentInsertAndSearch_noLostKeys() throws Exception {
+        DataManger dm = DataMangerHandler.create(TEST_NAME + "-concurrent", PageCache.PAGE_SIZE * 512, TransactionManager.create(TEST_NAME + "-concurrent"));
+        try {
+            // the smallest nodes, so the root splits again and again while others insert
+            BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, Node.MIN_BALANCE * 2), dm);
+            int writers = 4;
+            int perWriter = 1500;
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                int id = w;
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < perWriter; i++) {
+                            long key = (long) i * writers + id + 1;
+                            tree.insert(key, key);
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }));
+            }
+            for (int r = 0; r < 2; r++) {
+                threads.add(new Thread(() -> {
+                    try {
+                        Random random = new Random();
+                        for (int i = 0; i < 3000; i++) {
+                            long key = random.nextInt(writers * perWriter) + 1;
+                            List<Long> uids = tree.search(key);
+                            // a key is either not inserted yet or found once
+                            if (uids.size() > 1 || (uids.size() == 1 && uids.get(0) != key)) {
+                                throw new AssertionError("bad search of " + key + ": " + uids);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }));
+            }
+            for (Thread t : threads) t.start();
+            for (Thread t : threads) t.join();
+            if (error.get() != null) throw new AssertionError(error.get());
+
+            for (long key = 1; key <= writers * perWriter; key++) {
+                List<Long> uids = tree.search(key);
+                assertEquals(1, uids.size(), "key " + key);
+                assertEquals(key, (long) uids.get(0));
+            }
+            assertEquals(writers * perWriter, tree.searchRange(0, Long.MAX_VALUE - 1).size());
+            tree.close();
+        } finally {
+            dm.close();
+            for (String suffix : new String[]{LOG_SUFFIX, DB_SUFFIX, XID_SUFFIX, FSM_SUFFIX}) {
+                new File(TEST_NAME + "-concurrent" + suffix).delete();
+            }
+        }
+    }
+
+    @Test
+    void testCursor_batchesInKeyOrder() throws Exception {
+        DataManger dm = DataMangerHandler.create(TEST_NAME + "-cursor", PageCache.PAGE_SIZE * 512, TransactionManager.create(TEST_NAME + "-cursor"));
+        try {
+            BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 8), dm);
+            int lim = 3000;
+            for (int i = lim; i >= 1; i--) {
+                tree.insert(i, i);
+            }
+
+            // a leaf is never split across batches, a batch takes the leaves fitting in it
+            BPlusTree.Cursor cursor = tree.cursor(100, 2000, 16);
+            long[] uids = cursor.batch();
+            assertEquals(16, uids.length);
+            long expected = 100;
+            int batches = 0;
+            for (int n = cursor.next(); n > 0; n = cursor.next()) {
+                batches++;
+                for (int i = 0; i < n; i++) {
+                    assertEquals(expected++, uids[i]);
+                }
+            }
+            assertEquals(2001, expected);
+            assertTrue(batches > 1901 / 16);
+            assertEquals(0, cursor.next());
+
+            // stopping early reads one batch only
+            cursor = tree.cursor(1, lim);
+            int n = cursor.next();
+            assertTrue(n > 0 && n <= cursor.batch().length);
+            assertEquals(1, cursor.batch()[0]);
+
+            // an empty range
+            assertEquals(0, tree.cursor(lim + 1, Long.MAX_VALUE - 1).next());
+            tree.close();
+        } finally {
+            dm.close();
+            for (String suffix : new String[]{LOG_SUFFIX, DB_SUFFIX, XID_SUFFIX, FSM_SUFFIX}) {
+                new File(TEST_NAME + "-cursor" + suffix).delete();
+            }
+        }
+    }
 }
@@ -0,0 +1,81 @@
+package com.northeastern.edu.simpledb.backend.pageIndex;
+
+import com.northeastern.edu.simpledb.backend.dm.page.SecondaryPage;
+import com.northeastern.edu.simpledb.backend.dm.pageIndex.PageIndex;
+import com.northeastern.edu.simpledb.backend.dm.pageIndex.PageInfo;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * the throughput of the page index with 1 to 64 inserting threads, the
+ * default test run skips it, `mvn test -Pbenchmark` runs it
+ */
+public class PageIndexBenchmark {
+
+    private static final int PAGE_COUNT = 256;
+
+    private static final int OPERATIONS = 2_000_000;
+
+    private static final int WARMUP_OPERATIONS = 200_000;
+
+    @Test
+    void benchmarkSelectAndAdd_1To64Threads() throws Exception {
+        run(8, WARMUP_OPERATIONS);
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            long elapsed = run(threads, OPERATIONS);
+            System.out.printf("page index threads=%d ops/s=%d%n", threads, OPERATIONS * 1_000_000_000L / elapsed);
+        }
+    }
+
+    /**
+     * `threads` inserting threads share `operations` selections, each one
+     * puts the page back, return the elapsed nanoseconds
+     */
+    private long run(int threads, int operations) throws Exception {
+        PageIndex pageIndex = new PageIndex();
+        for (int i = 2; i < PAGE_COUNT + 2; i++) {
+            pageIndex.add(i, (i * 97) % SecondaryPage.MAX_FREE_SPACE);
+        }
+        AtomicIntegerArray holders = new AtomicIntegerArray(PAGE_COUNT + 2);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(threads);
+        Future<?>[] futures = new Future[threads];
+        int perThread = operations / threads;
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            futures[t] = executorService.submit(() -> {
+                start.countDown();
+                start.await();
+                for (int i = 0; i < perThread; i++) {
+                    PageInfo pageInfo = pageIndex.select((seed * 31 + i * 7) % 2000);
+                    if (pageInfo == null) continue;
+                    assertEquals(0, holders.getAndIncrement(pageInfo.pageNumber));
+                    holders.decrementAndGet(pageInfo.pageNumber);
+                    pageIndex.add(pageInfo.pageNumber, pageInfo.freeSpace);
+                }
+                return null;
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - begin;
+        executorService.shutdown();
+
+        // the run only counts if no page got lost
+        short[] freeSpaces = pageIndex.snapshot(PAGE_COUNT + 1);
+        for (int i = 2; i < PAGE_COUNT + 2; i++) {
+            assertEquals((i * 97) % SecondaryPage.MAX_FREE_SPACE, freeSpaces[i]);
+        }
+        return elapsed;
+    }
+}
@@ -1,12 +1,27 @@
 package com.northeastern.edu.simpledb.backend.pageIndex;
 
 import com.northeastern.edu.simpledb.backend.dm.cache.PageCache;
+import com.northeastern.edu.simpledb.backend.dm.page.SecondaryPage;
 import com.northeastern.edu.simpledb.backend.dm.pageIndex.PageIndex;
 import com.northeastern.edu.simpledb.backend.dm.pageIndex.PageInfo;
 import org.junit.jupiter.api.Test;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class PageIndexTest {
 
+    private static final int PAGE_COUNT = 256;
+
+    private static final int THREAD_COUNT = 16;
+
+    private static final int OPERATIONS = 10_000;
+
     @Test
     void testPageIndex_expectedNoException() {
         PageIndex pageIndex = new PageIndex();
@@ -23,4 +38,68 @@ public class PageIndexTest {
             assert pageInfo.pageNumber == i + 1;
         }
     }
+
+    @Test
+    void testSelectLastBucket_onlyPagesFittingData() {
+        PageIndex pageIndex = new PageIndex();
+        int threshold = PageCache.PAGE_SIZE / 40;
+        // both pages are in the last bucket
+        pageIndex.add(1, 40 * threshold + 5);
+        pageIndex.add(2, 40 * threshold + 20);
+
+        assertEquals(2, pageIndex.select(40 * threshold + 10).pageNumber);
+        assertNull(pageIndex.select(40 * threshold + 10));
+        assertEquals(1, pageIndex.select(40 * threshold).pageNumber);
+    }
+
+    @Test
+    void testSelect_expectedBestFitBucket() {
+        PageIndex pageIndex = new PageIndex();
+        pageIndex.add(2, SecondaryPage.MAX_FREE_SPACE);
+        pageIndex.add(3, 1000);
+        pageIndex.add(4, 100);
+
+        assertEquals(3, pageIndex.select(500).pageNumber);
+        assertEquals(2, pageIndex.select(500).pageNumber);
+        assertNull(pageIndex.select(500));
+        assertNull(pageIndex.select(SecondaryPage.MAX_FREE_SPACE));
+    }
+
+    // inserting threads select a page and put it back, a page must never be held by two threads and no page may get lost
+    @Test
+    void testConcurrentSelect_expectedDistinctPagesAndNoLostEntry() throws Exception {
+        PageIndex pageIndex = new PageIndex();
+        for (int i = 2; i < PAGE_COUNT + 2; i++) {
+            pageIndex.add(i, (i * 97) % SecondaryPage.MAX_FREE_SPACE);
+        }
+        AtomicIntegerArray holders = new AtomicIntegerArray(PAGE_COUNT + 2);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(THREAD_COUNT);
+        CountDownLatch start = new CountDownLatch(THREAD_COUNT);
+        Future<?>[] futures = new Future[THREAD_COUNT];
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int seed = t;
+            futures[t] = executorService.submit(() -> {
+                start.countDown();
+                start.await();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    PageInfo pageInfo = pageIndex.select((seed * 31 + i * 7) % 2000);
+                    if (pageInfo == null) continue;
+                    assertEquals(0, holders.getAndIncrement(pageInfo.pageNumber));
+                    holders.decrementAndGet(pageInfo.pageNumber);
+                    pageIndex.add(pageInfo.pageNumber, pageInfo.freeSpace);
+                }
+                return null;
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executorService.shutdown();
+
+        short[] freeSpaces = pageIndex.snapshot(PAGE_COUNT + 1);
+        for (int i = 2; i < PAGE_COUNT + 2; i++) {
+            assertEquals((i * 97) % SecondaryPage.MAX_FREE_SPACE, freeSpaces[i]);
+        }
+    }
 }
@@ -1,7 +1,9 @@
 package com.northeastern.edu.simpledb.backend.parser;
 
 import com.google.gson.Gson;
+import com.northeastern.edu.simpledb.backend.im.BPlusTree;
 import com.northeastern.edu.simpledb.backend.parser.statement.*;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import java.util.Arrays;
@@ -22,6 +24,24 @@ class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    void testCreateWithFanout() throws Exception {
+        String stat = "create table student id int32, name string, (index id) fanout 64";
+        Create create = (Create) Parser.Parse(stat.getBytes());
+        Assertions.assertEquals("student", create.tableName);
+        Assertions.assertEquals(64, create.fanout);
+
+        create = (Create) Parser.Parse("create table student id int32, (index id)".getBytes());
+        Assertions.assertEquals(0, create.fanout);
+
+        for (String fanout : new String[]{"0", "-4", "63", "2", String.valueOf(BPlusTree.maxFanout() + 2)}) {
+            byte[] bad = ("create table student id int32, (index id) fanout " + fanout).getBytes();
+            Assertions.assertThrows(Exception.class, () -> Parser.Parse(bad), fanout);
+        }
+        create = (Create) Parser.Parse(("create table student id int32, (index id) fanout " + BPlusTree.maxFanout()).getBytes());
+        Assertions.assertEquals(BPlusTree.maxFanout(), create.fanout);
+    }
+
     @Test
     void testBegin() throws Exception {
         String stat = "begin isolation level read committed";
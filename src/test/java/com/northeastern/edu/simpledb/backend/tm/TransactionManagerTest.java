@@ -3,12 +3,15 @@ package com.northeastern.edu.simpledb.backend.tm;
 import com.northeastern.edu.simpledb.backend.dm.page.Page;
 import org.checkerframework.checker.units.qual.C;
 import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.security.SecureRandom;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
@@ -61,6 +64,133 @@ public class TransactionManagerTest {
         }
     }
 
+    /**
+     * the states of 16 xids share an int of the bitmap, concurrent
+     * commits and aborts of neighbours must not overwrite each other
+     */
+    @Test
+    void testNeighbourStates_expectedNoLostUpdateAndStatesKeptAfterReopen() throws Exception {
+        String name = "tm-bitmap-test";
+        TransactionManager created = TransactionManager.create(name);
+        try {
+            int count = 1000;
+            for (int i = 0; i < count; i++) created.begin();
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                final int id = t;
+                threads[t] = new Thread(() -> {
+                    for (long xid = id + 1; xid <= count; xid += threads.length) {
+                        if (xid % 3 == 0) created.commit(xid);
+                        else if (xid % 3 == 1) created.abort(xid);
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) thread.join();
+            created.close();
+
+            TransactionManager tm0 = TransactionManager.open(name);
+            for (long xid = 1; xid <= count; xid++) {
+                Assertions.assertEquals(xid % 3 == 0, tm0.isCommitted(xid));
+                Assertions.assertEquals(xid % 3 == 1, tm0.isAborted(xid));
+                Assertions.assertEquals(xid % 3 == 2, tm0.isActive(xid));
+            }
+            Assertions.assertEquals(count + 1, tm0.begin());
+            tm0.close();
+        } finally {
+            new File(name + TransactionManager.XID_SUFFIX).delete();
+        }
+    }
+
+    @Test
+    void testOpenLegacyFile_expectedStatesConverted() throws Exception {
+        String name = "tm-legacy-test";
+        File f = new File(name + TransactionManager.XID_SUFFIX);
+        // the counter and a state byte per xid: active, committed, aborted
+        ByteBuffer legacy = ByteBuffer.allocate(TransactionManager.LEGACY_HEADER_LENGTH + 3);
+        legacy.putLong(3).put((byte) 0).put((byte) 1).put((byte) 2);
+        Files.write(f.toPath(), legacy.array());
+        try {
+            TransactionManager tm0 = TransactionManager.open(name);
+            Assertions.assertTrue(tm0.isActive(1));
+            Assertions.assertTrue(tm0.isCommitted(2));
+            Assertions.assertTrue(tm0.isAborted(3));
+            Assertions.assertEquals(4, tm0.begin());
+            tm0.close();
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    void testCrashInBatch_expectedRestOfBatchAbortedByRecovery() {
+        String name = "tm-batch-test";
+        TransactionManager crashed = TransactionManager.create(name);
+        try {
+            long committed = crashed.begin();
+            long active = crashed.begin();
+            long unlogged = crashed.begin();
+            long readOnly = crashed.begin();
+            crashed.commit(committed);
+            crashed.commit(readOnly);
+
+            // the process dies without closing, the header still holds the end of the batch
+            TransactionManager tm0 = TransactionManager.open(name);
+            Assertions.assertTrue(tm0.isActive(active));
+            Assertions.assertTrue(tm0.isActive(TransactionManager.XID_BATCH));
+
+            // recovery only found `active` in the log
+            tm0.abortActive(List.of(active));
+            Assertions.assertTrue(tm0.isCommitted(committed));
+            Assertions.assertTrue(tm0.isCommitted(readOnly));
+            Assertions.assertTrue(tm0.isAborted(active));
+            Assertions.assertTrue(tm0.isAborted(unlogged));
+            for (long xid = readOnly + 1; xid <= TransactionManager.XID_BATCH; xid++) {
+                Assertions.assertTrue(tm0.isAborted(xid));
+            }
+
+            long next = tm0.begin();
+            Assertions.assertEquals(TransactionManager.XID_BATCH + 1, next);
+            Assertions.assertTrue(tm0.isActive(next));
+            tm0.close();
+
+            // a normal close gives the unused xids back
+            tm0 = TransactionManager.open(name);
+            Assertions.assertTrue(tm0.isAborted(TransactionManager.XID_BATCH));
+            Assertions.assertEquals(next + 1, tm0.begin());
+            tm0.close();
+        } finally {
+            crashed.close();
+            new File(name + TransactionManager.XID_SUFFIX).delete();
+        }
+    }
+
+    @Test
+    void testCrashInLaterBatch_expectedEarlierBatchesLeftAlone() {
+        String name = "tm-later-batch-test";
+        TransactionManager crashed = TransactionManager.create(name);
+        try {
+            long running = crashed.begin();
+            for (int i = 1; i < TransactionManager.XID_BATCH; i++) {
+                crashed.commit(crashed.begin());
+            }
+            long last = crashed.begin();
+            Assertions.assertEquals(TransactionManager.XID_BATCH + 1, last);
+
+            // only the second batch is swept, the first one is given by recovery
+            TransactionManager tm0 = TransactionManager.open(name);
+            tm0.abortActive(List.of());
+            Assertions.assertTrue(tm0.isActive(running));
+            Assertions.assertTrue(tm0.isCommitted(TransactionManager.XID_BATCH));
+            Assertions.assertTrue(tm0.isAborted(last));
+            Assertions.assertTrue(tm0.isAborted(2L * TransactionManager.XID_BATCH));
+            tm0.close();
+        } finally {
+            crashed.close();
+            new File(name + TransactionManager.XID_SUFFIX).delete();
+        }
+    }
+
     private void worker() {
         boolean inTans = false;
         long transXID = 0;
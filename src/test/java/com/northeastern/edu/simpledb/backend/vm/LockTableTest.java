@@ -13,9 +13,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
 
-import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.*;
 
 class LockTableTest {
     @Spy
@@ -62,16 +61,30 @@ class LockTableTest {
         }
     }
 
+    @Test
+    void testRemove_releasesEveryUid() throws Exception {
+        for (long uid = 1; uid <= 100; uid++) {
+            assertNull(lockTable.add(1, uid));
+        }
+        LockTable.Waiter w = lockTable.add(2, 50);
+        assertNotNull(w);
+
+        lockTable.remove(1);
+        assertTrue(w.await(1000));
+        for (long uid = 1; uid <= 100; uid++) {
+            assertNull(lockTable.add(2, uid));
+        }
+        lockTable.remove(2);
+        assertNull(lockTable.add(3, 50));
+    }
+
     @Test
     void testMultiAdd_expectedRuntimeException() {
         for (long i = 1; i <= 100; i ++) {
             try {
-                Lock o = lockTable.add(i, i);
+                LockTable.Waiter o = lockTable.add(i, i);
                 if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
+                    Runnable r = () -> o.await(0);
                     new Thread(r).start();
                 }
             } catch (Exception e) {
@@ -81,12 +94,9 @@ class LockTableTest {
 
         for (long i = 1; i <= 99; i ++) {
             try {
-                Lock o = lockTable.add(i, i+1);
+                LockTable.Waiter o = lockTable.add(i, i+1);
                 if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
+                    Runnable r = () -> o.await(0);
                     new Thread(r).start();
                 }
             } catch (Exception e) {
@@ -104,6 +114,95 @@ class LockTableTest {
         }
     }
 
+    @Test
+    void testWaiter_blocksUntilGranted() throws Exception {
+        lockTable.add(1, 1);
+        LockTable.Waiter w2 = lockTable.add(2, 1);
+        LockTable.Waiter w3 = lockTable.add(3, 1);
+        assertNotNull(w2);
+        assertNotNull(w3);
+
+        // the waiter isn't granted in the thread that created it
+        assertFalse(w2.await(10));
+
+        // only the first waiter gets the uid
+        lockTable.remove(1);
+        assertTrue(w2.await(1000));
+        assertFalse(w3.await(1));
+
+        lockTable.remove(2);
+        assertTrue(w3.await(1000));
+
+        assertEquals(2, lockTable.getWaitCount());
+        assertEquals(2, lockTable.getWaitTime().count());
+        assertEquals(0, lockTable.getDeadlockCount());
+    }
+
+    @Test
+    void testDeadLock_countedAndNotWaiting() throws Exception {
+        lockTable.add(1, 1);
+        lockTable.add(2, 2);
+        lockTable.add(3, 3);
+        assertNotNull(lockTable.add(1, 2));
+        assertNotNull(lockTable.add(2, 3));
+        assertThrows(RuntimeException.class, () -> lockTable.add(3, 1));
+        assertEquals(1, lockTable.getDeadlockCount());
+
+        // the rejected edge is not in the graph, 3 can still be waited for
+        lockTable.remove(3);
+        assertNotNull(lockTable.add(3, 2));
+        assertEquals(3, lockTable.getWaitCount());
+    }
+
+    @Test
+    void testTimeout_givesUpAndLeavesQueue() throws Exception {
+        LockTable lt = new LockTable(20, 0);
+        try {
+            lt.add(1, 1);
+            LockTable.Waiter w2 = lt.add(2, 1);
+            LockTable.Waiter w3 = lt.add(3, 1);
+            assertThrows(RuntimeException.class, () -> lt.await(w2));
+            assertEquals(1, lt.getTimeoutCount());
+
+            // the waiter that gave up is skipped
+            lt.remove(1);
+            lt.await(w3);
+            assertNull(lt.add(2, 2));
+        } finally {
+            lt.close();
+        }
+    }
+
+    @Test
+    void testDetector_wakesCheapestVictim() throws Exception {
+        LockTable lt = new LockTable(10_000, 0);
+        try {
+            // 1 holds two uids, 2 and 3 hold one, 3 is the youngest of the cheapest
+            lt.add(1, 1);
+            lt.add(1, 4);
+            lt.add(2, 2);
+            lt.add(3, 3);
+            LockTable.Waiter w1 = lt.add(1, 2);
+            LockTable.Waiter w2 = lt.add(2, 3);
+            LockTable.Waiter w3 = lt.add(3, 1); // no synchronous detection with a timeout
+            assertNotNull(w3);
+
+            assertEquals(1, lt.detect());
+            assertEquals(1, lt.getDeadlockCount());
+            assertEquals(1, lt.getVictimCount());
+            assertThrows(RuntimeException.class, () -> lt.await(w3));
+            assertFalse(w2.await(1));
+
+            // the victim aborts, the others go on
+            lt.remove(3);
+            lt.await(w2);
+            assertEquals(0, lt.detect());
+            lt.remove(2);
+            lt.await(w1);
+        } finally {
+            lt.close();
+        }
+    }
 
     @Test
     void testPutIntoList_expectedNoException() {
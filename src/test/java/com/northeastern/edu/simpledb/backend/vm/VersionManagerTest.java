@@ -4,15 +4,21 @@ import com.northeastern.edu.simpledb.backend.dm.DataManger;
 import com.northeastern.edu.simpledb.backend.dm.DataMangerHandler;
 import com.northeastern.edu.simpledb.backend.dm.cache.PageCache;
 import com.northeastern.edu.simpledb.backend.tm.TransactionManager;
+import com.northeastern.edu.simpledb.common.Error;
 import org.junit.jupiter.api.*;
 import org.mockito.InjectMocks;
 import org.mockito.MockitoAnnotations;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import static com.northeastern.edu.simpledb.backend.dm.cache.PageCache.DB_SUFFIX;
 import static com.northeastern.edu.simpledb.backend.dm.logger.Logger.LOG_SUFFIX;
+import static com.northeastern.edu.simpledb.backend.dm.pageIndex.FreeSpaceMap.FSM_SUFFIX;
 import static com.northeastern.edu.simpledb.backend.tm.TransactionManager.XID_SUFFIX;
 
 class VersionManagerTest {
@@ -40,6 +46,7 @@ class VersionManagerTest {
         new File(TEST_NAME + LOG_SUFFIX).delete();
         new File(TEST_NAME + DB_SUFFIX).delete();
         new File(TEST_NAME + XID_SUFFIX).delete();
+        new File(TEST_NAME + FSM_SUFFIX).delete();
     }
 
     @Test
@@ -67,4 +74,117 @@ class VersionManagerTest {
         Assertions.assertNull(vm.read(xid, uid));
     }
 
-}
\ No newline at end of file
+    @Test
+    void testDeadLock_expectedDeadLockExceptionAndOtherGoesOn() throws Exception {
+        long xid = vm.begin(0);
+        long a = vm.insert(xid, "a".getBytes(StandardCharsets.UTF_8));
+        long b = vm.insert(xid, "b".getBytes(StandardCharsets.UTF_8));
+        vm.commit(xid);
+
+        long t1 = vm.begin(0), t2 = vm.begin(0);
+        Assertions.assertTrue(vm.delete(t1, a));
+        Assertions.assertTrue(vm.delete(t2, b));
+        LockTable lt = ((VersionManager) vm).lt;
+        long waits = lt.getWaitCount();
+        FutureTask<Boolean> waiting = new FutureTask<>(() -> vm.delete(t1, b));
+        new Thread(waiting).start();
+        while (lt.getWaitCount() == waits) Thread.yield();
+
+        Exception e = Assertions.assertThrows(Exception.class, () -> vm.delete(t2, a));
+        Assertions.assertSame(Error.DeadLockException, e);
+        Assertions.assertTrue(waiting.get(10, TimeUnit.SECONDS));
+        vm.commit(t1);
+    }
+
+    @Test
+    void testLockWaitTimeout_expectedLockTimeoutException() throws Exception {
+        VersionManager waiting = new VersionManager(tm, dm, 50);
+        try {
+            long xid = waiting.begin(0);
+            long uid = waiting.insert(xid, "timeout".getBytes(StandardCharsets.UTF_8));
+            waiting.commit(xid);
+
+            long t1 = waiting.begin(0), t2 = waiting.begin(0);
+            Assertions.assertTrue(waiting.delete(t1, uid));
+            Exception e = Assertions.assertThrows(Exception.class, () -> waiting.delete(t2, uid));
+            Assertions.assertSame(Error.LockTimeoutException, e);
+            waiting.commit(t1);
+        } finally {
+            waiting.close();
+        }
+    }
+
+    @Test
+    void testRepeatableRead_expectedSnapshotSharedUntilTransactionEnds() throws Exception {
+        VersionManager versionManager = (VersionManager) vm;
+        long writer = vm.begin(0);
+        long reader1 = vm.begin(1);
+        long reader2 = vm.begin(1);
+        Snapshot snapshot = versionManager.activeTransaction.get(reader1).snapshot;
+        // nothing ended in between, the second reader shares the snapshot and still sees the writer in progress
+        Assertions.assertSame(snapshot, versionManager.activeTransaction.get(reader2).snapshot);
+        Assertions.assertTrue(versionManager.activeTransaction.get(reader2).isInSnapShot(writer));
+        Assertions.assertTrue(versionManager.activeTransaction.get(reader2).isInSnapShot(reader1));
+
+        long uid = vm.insert(writer, "repeatable read test".getBytes(StandardCharsets.UTF_8));
+        vm.commit(writer);
+        Assertions.assertNull(vm.read(reader1, uid));
+        Assertions.assertNull(vm.read(reader2, uid));
+
+        long reader3 = vm.begin(1);
+        Assertions.assertNotSame(snapshot, versionManager.activeTransaction.get(reader3).snapshot);
+        Assertions.assertFalse(versionManager.activeTransaction.get(reader3).isInSnapShot(writer));
+        Assertions.assertEquals("repeatable read test", new String(vm.read(reader3, uid)));
+        vm.commit(reader1);
+        vm.commit(reader2);
+        vm.commit(reader3);
+    }
+
+    /**
+     * a full read of committed rows asks the transaction manager until
+     * the hint bits are set, the next full read doesn't ask at all
+     */
+    @Test
+    void testFullReadTwice_expectedNoStateLookupAfterHinting() throws Exception {
+        String name = "vm-hint-test";
+        TransactionManager.create(name).close();
+        RandomAccessFile raf = new RandomAccessFile(name + XID_SUFFIX, "rw");
+        LongAdder lookups = new LongAdder();
+        TransactionManager counting = new TransactionManager(raf, raf.getChannel()) {
+            @Override
+            public boolean isCommitted(long xid) {
+                lookups.increment();
+                return super.isCommitted(xid);
+            }
+        };
+        DataManger dm0 = DataMangerHandler.create(name, PageCache.PAGE_SIZE * 64, counting);
+        try {
+            VersionManagerHandler vm0 = VersionManagerHandler.newVersionManager(counting, dm0);
+            long writer = vm0.begin(0);
+            long[] uids = new long[2000];
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = vm0.insert(writer, ("row " + i).getBytes(StandardCharsets.UTF_8));
+            }
+            vm0.commit(writer);
+
+            long[] counts = new long[2];
+            for (int round = 0; round < 2; round++) {
+                long reader = vm0.begin(1);
+                lookups.reset();
+                for (long uid : uids) {
+                    Assertions.assertNotNull(vm0.read(reader, uid));
+                }
+                counts[round] = lookups.sum();
+                vm0.commit(reader);
+            }
+            Assertions.assertEquals(uids.length, counts[0]);
+            Assertions.assertEquals(0, counts[1]);
+        } finally {
+            new File(name + LOG_SUFFIX).delete();
+            new File(name + DB_SUFFIX).delete();
+            new File(name + XID_SUFFIX).delete();
+            new File(name + FSM_SUFFIX).delete();
+        }
+    }
+
+}